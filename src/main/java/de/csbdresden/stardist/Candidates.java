@@ -2,7 +2,15 @@ package de.csbdresden.stardist;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
 import java.util.stream.IntStream;
 
 import org.scijava.log.LogService;
@@ -21,20 +29,64 @@ import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 
 public class Candidates {
+
+    // computation of polygon intersection areas during nms
+    public enum Intersection { STAR_CONVEX, CLIPPER }
+
+    // storage of the ray lengths of candidates that are kept without the distance image (see Tile):
+    // 32 bit floats, 16 bit floats, or 16 bit integers scaled by the largest ray length (of a tile)
+    public enum RayStorage { FLOAT32, FLOAT16, INT16 }
     
-    private final List<Path> polygons = new ArrayList<>();
-    private final List<Point2D> origins = new ArrayList<>();
-    private final List<Box2D> bboxes = new ArrayList<>();
-    private final List<Double> areas = new ArrayList<>();
-    private final List<Float> scores = new ArrayList<>();
-    private final List<Integer> score_indices;
-    private final List<Integer> winner = new ArrayList<>();
-    private final boolean[] suppressed;
+    // candidate data is stored in flat primitive arrays (struct-of-arrays), candidate i has its
+    // origin (pixel coordinates x,y) at [2*i, 2*i+2) of origins. the polygon vertices and area of a
+    // candidate are only computed when needed (see polygon), from the ray lengths at its origin
+    private final int n;
+    private final int nrays;
+    private final int width, height;
+    private final int[] origins;
+    private final int[] radii;
+    private final float[] scores;
+    private final double[] areas;
+    private final double[] inner;
+    // candidates with a ray <= 0, whose polygons needn't be star-convex around their origin (see poly_intersection_area)
+    private final boolean[] nonPositiveRay;
+    private final AtomicReferenceArray<long[]> polygons;
+    private final RayReader rays;
+    private final double[] cos, sin;
+    private final int[] score_indices;
+    private int[] winner = new int[0];
+    private final AtomicLongArray suppressed;
+    private Grid grid = null;
+    private OverlapGraph overlapGraph = null;
+    private Intersection intersection = Intersection.STAR_CONVEX;
+    private final ThreadLocal<StarConvexIntersection> starConvex;
+    private final LongAdder[] overlapTests;
     private final boolean verbose;
     private final LogService log;
 
     // scale all coordinates by this value and divide later to get subpixel resolution
     private static final long S = 100;
+
+    // candidate extraction: number of bands per available thread and minimum band width
+    private static final int PARALLELISM = ForkJoinPool.getCommonPoolParallelism();
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int MIN_BAND_SIZE = 16;
+
+    // nms: spatial grid layout and minimum block width for parallel processing
+    private static final int GRID_CELLS_PER_CANDIDATE = 4;
+    private static final int MAX_GRID_CELLS_PER_CANDIDATE = 64;
+    private static final int BLOCKS_PER_THREAD = 4;
+    private static final int MIN_NMS_BLOCK_SIZE = 128;
+
+    // overlap graph: number of candidate ranks per parallel task
+    private static final int GRAPH_CHUNK_SIZE = 256;
+
+    // nms: stages of the overlap test of a pair of candidates, cheap bounds first (see overlaps)
+    public static final int OVERLAP_BBOX = 0, OVERLAP_BBOX_AREA = 1, OVERLAP_OUTER_CIRCLES = 2,
+                            OVERLAP_CONTAINED = 3, OVERLAP_INNER_CIRCLES = 4, OVERLAP_EXACT = 5;
+    private static final String[] OVERLAP_STAGES = {"bbox", "bbox area", "outer circles", "contained", "inner circles", "exact"};
+    // relative margin for decisions based on bounds, close calls are left to the exact test
+    private static final double BOUND_EPS = 1e-9;
     
     public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist) {
         this(prob, dist, 0.4);
@@ -44,110 +96,1158 @@ public class Candidates {
         this(prob, dist, threshold, 2, null);
     }
 
-    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b, LogService log) {        
+    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b, LogService log) {
+        this(prob, dist, threshold, b, 0, 0, 0, log);
+    }
+
+    /**
+     * Optionally prefilters the pixels above the threshold before they become candidates:
+     * if {@code maximaRadius > 0}, only local maxima of prob within a (2*maximaRadius+1)^2 neighborhood are kept;
+     * if {@code cellSize > 0 && cellBudget > 0}, only the {@code cellBudget} highest-scoring candidates
+     * of each {@code cellSize x cellSize} grid cell are kept.
+     */
+    public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b,
+                      int maximaRadius, int cellSize, int cellBudget, LogService log) {
+        this(extract(prob, dist, threshold, b, maximaRadius, cellSize, cellBudget, log), log);
+    }
+
+    // candidates of several tiles of a larger image (of the given size), in the same order as if extracted from the
+    // whole image. the tiles must not share candidates, cellSize and cellBudget are applied to the merged candidates.
+    // the ray lengths are kept in the storage of the first tile. the tiles are removed from the list (replaced by null)
+    // as soon as all of their candidates are merged, such that their memory can be released
+    public static Candidates ofTiles(final int width, final int height, final List<Tile> tiles, final int cellSize, final int cellBudget, final LogService log) {
         final long start = System.currentTimeMillis();
+        final int nrays = tiles.isEmpty() ? 0 : tiles.get(0).nrays;
+        final RayStorage storage = tiles.isEmpty() ? RayStorage.FLOAT32 : tiles.get(0).rays.storage;
+        int m = 0;
+        float maxRay = 0;
+        for (final Tile tile : tiles) {
+            m += tile.m;
+            maxRay = Math.max(maxRay, tile.rays.maxRay);
+        }
+        // the candidates of each tile are in the order of a scan (by x, then by y), hence the order of a scan
+        // of the whole image results from merging the tiles by the position of their next candidate
+        final int[] next = new int[tiles.size()];
+        final PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, tiles.size()), (s, t) -> {
+            final int[] a = tiles.get(s).origins, b = tiles.get(t).origins;
+            final int i = 2*next[s], k = 2*next[t];
+            return a[i] != b[k] ? Integer.compare(a[i], b[k]) : Integer.compare(a[i+1], b[k+1]);
+        });
+        for (int t = 0; t < tiles.size(); t++) {
+            if (tiles.get(t).m > 0) heads.add(t);
+            else tiles.set(t, null);
+        }
+        final Band band = new Band(m);
+        final ArrayRayReader rays = new ArrayRayReader(storage, nrays, m, maxRay);
+        final float[] d = new float[nrays];
+        for (int h = 0; !heads.isEmpty(); h++) {
+            final int t = heads.poll();
+            final Tile tile = tiles.get(t);
+            final int i = next[t]++;
+            tile.rays.read(i, 0, 0, d);
+            rays.write(h, d);
+            // radius of the stored (possibly rounded) ray lengths
+            rays.read(h, 0, 0, d);
+            band.add(tile.origins[2*i], tile.origins[2*i+1], radius(maxAbs(d)), tile.scores[i]);
+            if (next[t] < tile.m) heads.add(t);
+            else tiles.set(t, null);
+        }
+        return new Candidates(filter(new Extraction(width, height, nrays, band, rays, "tiles", start), cellSize, cellBudget, log), log);
+    }
+
+    // candidates of a whole image like the constructor, but their ray lengths are copied (in the given storage),
+    // hence the images aren't referenced afterwards
+    public static Candidates sparse(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b,
+                                    int maximaRadius, int cellSize, int cellBudget, RayStorage storage, LogService log) {
+        final int width = (int)dist.dimension(0), height = (int)dist.dimension(1);
+        final Tile tile = new Tile(prob, dist, threshold, maximaRadius, b, Math.max(b, width-b), b, height-b, 0, 0, storage);
+        return ofTiles(width, height, new ArrayList<>(Collections.singletonList(tile)), cellSize, cellBudget, log);
+    }
+
+    // candidates of a tile of a larger image together with their ray lengths, hence the tile data isn't needed afterwards.
+    // only candidates with origin in [xfrom,xto) x [yfrom,yto) (tile coordinates) are extracted, their origins are
+    // shifted by (x0,y0) to image coordinates (see ofTiles)
+    public static final class Tile {
+        final int m, nrays;
+        final int[] origins;
+        final float[] scores;
+        final ArrayRayReader rays;
+
+        public Tile(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int maximaRadius,
+                    int xfrom, int xto, int yfrom, int yto, int x0, int y0) {
+            this(prob, dist, threshold, maximaRadius, xfrom, xto, yfrom, yto, x0, y0, RayStorage.FLOAT32);
+        }
+
+        public Tile(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int maximaRadius,
+                    int xfrom, int xto, int yfrom, int yto, int x0, int y0, RayStorage storage) {
+            final FloatPlanes probPlanes = FloatPlanes.of(prob), distPlanes = FloatPlanes.of(dist);
+            final boolean direct = probPlanes != null && distPlanes != null;
+            final Band band = scan(prob, dist, probPlanes, distPlanes, xfrom, xto, yfrom, yto, threshold, maximaRadius);
+            final RayReader reader = direct ? distPlanes : new GenericRayReader(dist);
+            m = band.m;
+            nrays = (int)dist.dimension(2);
+            origins = new int[2*m];
+            scores = Arrays.copyOf(band.scores, m);
+            // the radii bound the ray lengths (see radius)
+            int maxRadius = 0;
+            for (int i = 0; i < m; i++)
+                maxRadius = Math.max(maxRadius, band.radii[i]);
+            rays = new ArrayRayReader(storage, nrays, m, (float) maxRadius / S);
+            final float[] d = new float[nrays];
+            for (int i = 0; i < m; i++) {
+                reader.read(i, band.origins[2*i], band.origins[2*i+1], d);
+                rays.write(i, d);
+                origins[2*i] = x0 + band.origins[2*i];
+                origins[2*i+1] = y0 + band.origins[2*i+1];
+            }
+        }
+    }
+
+    private Candidates(final Extraction e, final LogService log) {
         this.verbose = log != null;
         this.log = log;
-        
+        this.n = e.band.m;
+        this.nrays = e.nrays;
+        this.width = e.width;
+        this.height = e.height;
+        this.origins = e.band.origins;
+        this.radii = e.band.radii;
+        this.scores = e.band.scores;
+        cos = Utils.rayCos(nrays);
+        sin = Utils.raySin(nrays);
+        this.areas = new double[n];
+        this.inner = new double[n];
+        this.nonPositiveRay = new boolean[n];
+        this.polygons = new AtomicReferenceArray<>(n);
+        this.rays = e.rays;
+        score_indices = Utils.argsortDescending(this.scores);
+        suppressed = new AtomicLongArray((n+63) >>> 6);
+        starConvex = ThreadLocal.withInitial(() -> new StarConvexIntersection(nrays));
+        overlapTests = new LongAdder[OVERLAP_STAGES.length];
+        for (int s = 0; s < overlapTests.length; s++)
+            overlapTests[s] = new LongAdder();
+
+        if (verbose)
+            log.info(String.format("Candidates constructor took %d ms%s", System.currentTimeMillis() - e.start, e.access.isEmpty() ? "" : " ("+e.access+")"));
+    }
+
+    // extracted candidates (trimmed to size), the ray lengths are read on demand
+    private static final class Extraction {
+        final int width, height, nrays;
+        final Band band;
+        final RayReader rays;
+        final String access;
+        final long start;
+
+        Extraction(final int width, final int height, final int nrays, final Band band, final RayReader rays, final String access, final long start) {
+            this.width = width;
+            this.height = height;
+            this.nrays = nrays;
+            this.band = band;
+            this.rays = rays;
+            this.access = access;
+            this.start = start;
+        }
+    }
+
+    private static Extraction extract(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist, double threshold, int b,
+                                      int maximaRadius, int cellSize, int cellBudget, LogService log) {
+        final long start = System.currentTimeMillis();
         final long[] shape = Intervals.dimensionsAsLongArray(dist);
         final int ndim = shape.length;
         assert ndim == 3;
 
-        int nrays = (int)shape[2];
-        final double[] phis = Utils.rayAngles(nrays);
-        
+        // read directly from the underlying float arrays if possible
+        final FloatPlanes probPlanes = FloatPlanes.of(prob), distPlanes = FloatPlanes.of(dist);
+        final boolean direct = probPlanes != null && distPlanes != null;
+
+        final Band band = scan(prob, dist, probPlanes, distPlanes, b, (int)Math.max(b, shape[0]-b), b, (int)shape[1]-b, threshold, maximaRadius);
+        final Extraction e = new Extraction((int)shape[0], (int)shape[1], (int)shape[2], band,
+                direct ? distPlanes : new GenericRayReader(dist), direct ? "" : "generic image access", start);
+        return filter(e, cellSize, cellBudget, log);
+    }
+
+    // scans bands of consecutive positions along the first dimension in parallel;
+    // merging the bands in order yields the same candidate order as a sequential scan
+    private static Band scan(final RandomAccessibleInterval<FloatType> prob, final RandomAccessibleInterval<FloatType> dist,
+                             final FloatPlanes probPlanes, final FloatPlanes distPlanes,
+                             final int ifrom, final int ito, final int jfrom, final int jto, final double threshold, final int maximaRadius) {
+        final int nrays = (int)dist.dimension(2);
+        final boolean direct = probPlanes != null && distPlanes != null;
+        final int bandSize = Math.max(MIN_BAND_SIZE, (ito - ifrom + BANDS_PER_THREAD*PARALLELISM - 1) / (BANDS_PER_THREAD*PARALLELISM));
+        final Band[] bands = new Band[Math.max(1, (ito - ifrom + bandSize - 1) / bandSize)];
+        ForkJoinPool.commonPool().invoke(new BandScan(bands, 0, bands.length, band -> {
+            final int i0 = ifrom + band*bandSize;
+            if (direct)
+                return scanBand(probPlanes, distPlanes, i0, Math.min(ito, i0+bandSize), jfrom, jto, threshold, maximaRadius, nrays);
+            else
+                return scanBand(prob, dist, i0, Math.min(ito, i0+bandSize), jfrom, jto, threshold, maximaRadius, nrays);
+        }));
+
+        int m = 0;
+        for (final Band band : bands) m += band.m;
+        final Band merged = new Band();
+        merged.m = merged.capacity = m;
+        merged.origins = new int[2*m];
+        merged.radii = new int[m];
+        merged.scores = new float[m];
+        m = 0;
+        for (final Band band : bands) {
+            System.arraycopy(band.origins, 0, merged.origins, 2*m, 2*band.m);
+            System.arraycopy(band.radii,   0, merged.radii,   m,   band.m);
+            System.arraycopy(band.scores,  0, merged.scores,  m,   band.m);
+            m += band.m;
+        }
+        return merged;
+    }
+
+    // applies the grid cell budget (if enabled) and trims the candidate arrays to size
+    private static Extraction filter(final Extraction e, final int cellSize, final int cellBudget, final LogService log) {
+        final Band band = e.band;
+        int m = band.m;
+        if (cellSize > 0 && cellBudget > 0) {
+            final boolean[] keep = cellBudgetFilter(band.origins, Arrays.copyOf(band.scores, m), e.width, e.height, cellSize, cellBudget);
+            int k = 0;
+            for (int i = 0; i < m; i++) {
+                if (!keep[i]) continue;
+                band.origins[2*k] = band.origins[2*i]; band.origins[2*k+1] = band.origins[2*i+1];
+                band.radii[k] = band.radii[i];
+                band.scores[k] = band.scores[i];
+                e.rays.move(i, k);
+                k++;
+            }
+            if (log != null)
+                log.info(String.format("Candidates grid cell budget kept %d of %d candidates", k, m));
+            m = band.m = k;
+        }
+        if (band.origins.length != 2*m) band.origins = Arrays.copyOf(band.origins, 2*m);
+        if (band.radii.length != m) band.radii = Arrays.copyOf(band.radii, m);
+        if (band.scores.length != m) band.scores = Arrays.copyOf(band.scores, m);
+        band.capacity = m;
+        return e;
+    }
+
+    private static float maxAbs(final float[] values) {
+        float max = 0;
+        for (final float v : values)
+            max = Math.max(max, Math.abs(v));
+        return max;
+    }
+
+    // conservative polygon "radius" (scaled by S) from the ray lengths, also accounts for rounding of vertex coordinates
+    private static int radius(final float maxRay) {
+        return (int)Math.ceil(S * maxRay) + 1;
+    }
+    
+    private static Band scanBand(final RandomAccessibleInterval<FloatType> prob, final RandomAccessibleInterval<FloatType> dist,
+                                 final int ifrom, final int ito, final long jfrom, final long jto, final double threshold,
+                                 final int maximaRadius, final int nrays) {
         final RandomAccess<FloatType> r = prob.randomAccess();
+        final RandomAccess<FloatType> rn = prob.randomAccess();
         final RandomAccess<FloatType> s = dist.randomAccess();
+        final long width = prob.dimension(0), height = prob.dimension(1);
+        final Band band = new Band();
         
-        for (int i = b; i < shape[0]-b; i++) {
-            for (int j = b; j < shape[1]-b; j++) {
+        for (int i = ifrom; i < ito; i++) {
+            for (int j = (int)jfrom; j < jto; j++) {
                 r.setPosition(i, 0); r.setPosition(j, 1);
                 s.setPosition(i, 0); s.setPosition(j, 1);
                 final float score = r.get().getRealFloat();
-                if (score > threshold) {
-                    final Path poly = new Path();
-                    long xmin = Long.MAX_VALUE, xmax = Long.MIN_VALUE;
-                    long ymin = Long.MAX_VALUE, ymax = Long.MIN_VALUE;
+                if (score > threshold && (maximaRadius <= 0 || isLocalMaximum(rn, i, j, score, maximaRadius, width, height))) {
+                    float maxRay = 0;
                     for (int k = 0; k < nrays; k++) {
                         s.setPosition(k, 2);
-                        FloatType d = s.get();
-                        long x = Math.round(S * (i + d.getRealDouble() * Math.cos(phis[k])));
-                        long y = Math.round(S * (j + d.getRealDouble() * Math.sin(phis[k])));
-                        xmin = Math.min(xmin,x);
-                        ymin = Math.min(ymin,y);
-                        xmax = Math.max(xmax,x);
-                        ymax = Math.max(ymax,y);
-                        poly.add(new LongPoint(x,y));                        
+                        maxRay = Math.max(maxRay, Math.abs(s.get().getRealFloat()));
                     }
-                    polygons.add(poly);
-                    bboxes.add(new Box2D(xmin,xmax,ymin,ymax));
-                    origins.add(new Point2D(S*i,S*j));
-                    scores.add(score);
-                    areas.add(poly.area());
+                    band.add(i, j, radius(maxRay), score);
                 }
             }
         }
-        score_indices = Utils.argsortDescending(scores);
-        suppressed = new boolean[polygons.size()];
-        
-        if (verbose)
-            log.info(String.format("Candidates constructor took %d ms", System.currentTimeMillis() - start));
+        return band;
     }
-    
+
+    // same as above, but reads prob and dist directly from their float arrays
+    private static Band scanBand(final FloatPlanes prob, final FloatPlanes dist,
+                                 final int ifrom, final int ito, final int jfrom, final int jto, final double threshold,
+                                 final int maximaRadius, final int nrays) {
+        final int width = prob.width, height = prob.height, bandWidth = Math.max(0, ito - ifrom);
+        final float[] p = prob.planes[0];
+        final int po = prob.offsets[0];
+        final Band band = new Band();
+
+        // traverse the band row by row (cache-friendly), then order the pixels above the
+        // threshold by column to get the same candidate order as the generic scan
+        int[] hits = new int[64];
+        int numHits = 0;
+        final int[] columnStart = new int[bandWidth+1];
+        for (int j = jfrom; j < jto; j++) {
+            final int row = j*width;
+            for (int i = ifrom; i < ito; i++) {
+                if (p[po + row + i] > threshold && (maximaRadius <= 0 || isLocalMaximum(p, po, width, height, i, j, maximaRadius))) {
+                    if (numHits == hits.length) hits = Arrays.copyOf(hits, 2*numHits);
+                    hits[numHits++] = row + i;
+                    columnStart[i - ifrom + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < bandWidth; c++)
+            columnStart[c+1] += columnStart[c];
+        final int[] pixels = new int[numHits];
+        for (int h = 0; h < numHits; h++)
+            pixels[columnStart[hits[h] % width - ifrom]++] = hits[h];
+
+        for (final int pixel : pixels) {
+            float maxRay = 0;
+            for (int k = 0; k < nrays; k++)
+                maxRay = Math.max(maxRay, Math.abs(dist.planes[k][dist.offsets[k] + pixel]));
+            band.add(pixel % width, pixel / width, radius(maxRay), p[po + pixel]);
+        }
+        return band;
+    }
+
+    // true if no prob value in the (2*radius+1)^2 neighborhood of (x,y) is larger than score (plateaus are kept)
+    private static boolean isLocalMaximum(final RandomAccess<FloatType> r, final int x, final int y, final float score,
+                                          final int radius, final long width, final long height) {
+        final long xmin = Math.max(0, x-radius), xmax = Math.min(width-1, x+radius);
+        final long ymin = Math.max(0, y-radius), ymax = Math.min(height-1, y+radius);
+        for (long v = ymin; v <= ymax; v++) {
+            r.setPosition(v, 1);
+            for (long u = xmin; u <= xmax; u++) {
+                r.setPosition(u, 0);
+                if (r.get().getRealFloat() > score) return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLocalMaximum(final float[] p, final int offset, final int width, final int height,
+                                          final int x, final int y, final int radius) {
+        final float score = p[offset + x + width*y];
+        final int xmin = Math.max(0, x-radius), xmax = Math.min(width-1, x+radius);
+        final int ymin = Math.max(0, y-radius), ymax = Math.min(height-1, y+radius);
+        for (int v = ymin; v <= ymax; v++) {
+            final int row = offset + width*v;
+            for (int u = xmin; u <= xmax; u++)
+                if (p[row + u] > score) return false;
+        }
+        return true;
+    }
+
+    // marks the cellBudget highest-scoring candidates of every grid cell (ties are resolved by candidate order)
+    private static boolean[] cellBudgetFilter(final int[] origins, final float[] scores, final int width, final int height,
+                                              final int cellSize, final int cellBudget) {
+        final int m = scores.length;
+        final int cellsX = (width + cellSize - 1) / cellSize, cellsY = (height + cellSize - 1) / cellSize;
+        // group candidates by cell, preserving their order within each cell
+        final int[] cellStart = new int[cellsX*cellsY+1];
+        final int[] cell = new int[m];
+        for (int i = 0; i < m; i++) {
+            cell[i] = origins[2*i]/cellSize + cellsX*(origins[2*i+1]/cellSize);
+            cellStart[cell[i]+1]++;
+        }
+        for (int c = 0; c < cellsX*cellsY; c++)
+            cellStart[c+1] += cellStart[c];
+        final int[] byCell = new int[m];
+        final int[] fill = Arrays.copyOf(cellStart, cellsX*cellsY);
+        for (int i = 0; i < m; i++)
+            byCell[fill[cell[i]]++] = i;
+
+        final boolean[] keep = new boolean[m];
+        for (int c = 0; c < cellsX*cellsY; c++) {
+            final int from = cellStart[c], to = cellStart[c+1];
+            if (to - from <= cellBudget) {
+                for (int h = from; h < to; h++) keep[byCell[h]] = true;
+            } else {
+                final float[] cellScores = new float[to - from];
+                for (int h = from; h < to; h++) cellScores[h-from] = scores[byCell[h]];
+                final int[] order = Utils.argsortDescending(cellScores);
+                for (int h = 0; h < cellBudget; h++) keep[byCell[from + order[h]]] = true;
+            }
+        }
+        return keep;
+    }
+
+    // reads the ray lengths of candidate i at pixel (x,y) of the distance image, may be called from several threads
+    private interface RayReader {
+        void read(int i, int x, int y, float[] rays);
+
+        // candidate i becomes candidate k (k <= i), when candidates are removed
+        default void move(int i, int k) {}
+    }
+
+    // ray lengths stored by candidate, either as floats or packed into 16 bits (see RayStorage). the candidates are
+    // stored in blocks (candidate i at [(i%BLOCK_SIZE)*nrays, (i%BLOCK_SIZE+1)*nrays) of block i/BLOCK_SIZE), such that
+    // there are no array size limits for many candidates. blocks are allocated when they are first written
+    private static final class ArrayRayReader implements RayReader {
+        private static final int BLOCK_BITS = 16, BLOCK_SIZE = 1 << BLOCK_BITS;
+        private final RayStorage storage;
+        private final int nrays, m;
+        private final float[][] rays;
+        private final short[][] packed;
+        // upper bound of the absolute ray lengths, INT16 stores round(ray/step)
+        private final float maxRay, step;
+
+        ArrayRayReader(final RayStorage storage, final int nrays, final int m, final float maxRay) {
+            this.storage = storage;
+            this.nrays = nrays;
+            this.m = m;
+            this.maxRay = maxRay;
+            this.step = Math.max(Float.MIN_NORMAL, maxRay / Short.MAX_VALUE);
+            final int numBlocks = (int) (((long) m + BLOCK_SIZE - 1) >>> BLOCK_BITS);
+            this.rays = storage == RayStorage.FLOAT32 ? new float[numBlocks][] : null;
+            this.packed = storage == RayStorage.FLOAT32 ? null : new short[numBlocks][];
+        }
+
+        private int blockLength(final int block) {
+            return Math.min(BLOCK_SIZE, m - (block << BLOCK_BITS)) * nrays;
+        }
+
+        void write(final int i, final float[] in) {
+            final int block = i >>> BLOCK_BITS, o = (i & (BLOCK_SIZE-1)) * nrays;
+            switch (storage) {
+                case FLOAT32:
+                    if (rays[block] == null) rays[block] = new float[blockLength(block)];
+                    System.arraycopy(in, 0, rays[block], o, nrays);
+                    break;
+                case FLOAT16:
+                    if (packed[block] == null) packed[block] = new short[blockLength(block)];
+                    for (int k = 0; k < nrays; k++) packed[block][o+k] = toHalf(in[k]);
+                    break;
+                case INT16:
+                    if (packed[block] == null) packed[block] = new short[blockLength(block)];
+                    for (int k = 0; k < nrays; k++) packed[block][o+k] = (short) Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, Math.round(in[k] / step)));
+                    break;
+            }
+        }
+
+        @Override
+        public void read(final int i, final int x, final int y, final float[] out) {
+            final int block = i >>> BLOCK_BITS, o = (i & (BLOCK_SIZE-1)) * nrays;
+            switch (storage) {
+                case FLOAT32: System.arraycopy(rays[block], o, out, 0, nrays); break;
+                case FLOAT16: for (int k = 0; k < nrays; k++) out[k] = fromHalf(packed[block][o+k]); break;
+                case INT16:   for (int k = 0; k < nrays; k++) out[k] = step * packed[block][o+k]; break;
+            }
+        }
+
+        @Override
+        public void move(final int i, final int k) {
+            final int oi = (i & (BLOCK_SIZE-1)) * nrays, ok = (k & (BLOCK_SIZE-1)) * nrays;
+            if (storage == RayStorage.FLOAT32)
+                System.arraycopy(rays[i >>> BLOCK_BITS], oi, rays[k >>> BLOCK_BITS], ok, nrays);
+            else
+                System.arraycopy(packed[i >>> BLOCK_BITS], oi, packed[k >>> BLOCK_BITS], ok, nrays);
+        }
+
+        // IEEE 754 half precision (rounded to nearest), values beyond its range are clamped
+        private static short toHalf(final float v) {
+            final int bits = Float.floatToIntBits(v);
+            final int sign = (bits >>> 16) & 0x8000, abs = bits & 0x7fffffff;
+            if (abs >= 0x477ff000) return (short)(sign | 0x7bff);
+            // subnormal: multiple of 2^-24
+            if (abs < 0x38800000) return (short)(sign | Math.round(Float.intBitsToFloat(abs) * (1 << 24)));
+            // rebias the exponent, round the mantissa to 10 bits
+            return (short)(sign | ((abs - 0x38000000 + 0x1000) >>> 13));
+        }
+
+        private static float fromHalf(final short h) {
+            final int sign = (h & 0x8000) << 16, abs = h & 0x7fff;
+            if (abs < 0x400) return Float.intBitsToFloat(sign | Float.floatToIntBits(abs / (float)(1 << 24)));
+            return Float.intBitsToFloat(sign | (abs + 0x1c000) << 13);
+        }
+    }
+
+    private static final class GenericRayReader implements RayReader {
+        private final ThreadLocal<RandomAccess<FloatType>> access;
+
+        GenericRayReader(final RandomAccessibleInterval<FloatType> dist) {
+            access = ThreadLocal.withInitial(dist::randomAccess);
+        }
+
+        @Override
+        public void read(final int i, final int x, final int y, final float[] rays) {
+            final RandomAccess<FloatType> s = access.get();
+            s.setPosition(x, 0); s.setPosition(y, 1);
+            for (int k = 0; k < rays.length; k++) {
+                s.setPosition(k, 2);
+                rays[k] = s.get().getRealFloat();
+            }
+        }
+    }
+
+    // float data of a (X,Y) or (X,Y,C) image, value at pixel x+width*y of channel c is planes[c][offsets[c]+x+width*y]
+    private static final class FloatPlanes implements RayReader {
+        final int width, height;
+        final float[][] planes;
+        final int[] offsets;
+
+        private FloatPlanes(final int width, final int height, final float[][] planes, final int[] offsets) {
+            this.width = width;
+            this.height = height;
+            this.planes = planes;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public void read(final int i, final int x, final int y, final float[] rays) {
+            final int pixel = x + width*y;
+            for (int k = 0; k < rays.length; k++)
+                rays[k] = planes[k][offsets[k] + pixel];
+        }
+
+        // returns null if the data of the image isn't directly accessible
+        static FloatPlanes of(final RandomAccessibleInterval<FloatType> rai) {
+            final int ndim = rai.numDimensions();
+            if (!(ndim == 2 || ndim == 3))
+                return null;
+            final FloatPlaneStack stack = FloatPlaneStack.of(rai);
+            return stack == null ? null : new FloatPlanes(stack.width, stack.height, stack.planes, stack.offsets);
+        }
+    }
+
+    // candidates of one band, same layout as in Candidates, grown on demand
+    private static final class Band {
+        int m = 0, capacity;
+        int[] origins, radii;
+        float[] scores;
+
+        Band() {
+            this(64);
+        }
+
+        Band(final int capacity) {
+            this.capacity = Math.max(1, capacity);
+            origins = new int[2*this.capacity];
+            radii = new int[this.capacity];
+            scores = new float[this.capacity];
+        }
+
+        void add(final int x, final int y, final int radius, final float score) {
+            if (m == capacity) {
+                capacity *= 2;
+                origins = Arrays.copyOf(origins, 2*capacity);
+                radii = Arrays.copyOf(radii, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            origins[2*m] = x; origins[2*m+1] = y;
+            radii[m] = radius;
+            scores[m] = score;
+            m++;
+        }
+    }
+
+    // recursively splits the bands [from,to) into halves until each task scans a single band
+    private static final class BandScan extends RecursiveAction {
+        private final Band[] bands;
+        private final int from, to;
+        private final IntFunction<Band> scan;
+
+        BandScan(final Band[] bands, final int from, final int to, final IntFunction<Band> scan) {
+            this.bands = bands;
+            this.from = from;
+            this.to = to;
+            this.scan = scan;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                bands[from] = scan.apply(from);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new BandScan(bands, from, mid, scan), new BandScan(bands, mid, to, scan));
+            }
+        }
+    }
+
+    // ---------
+
     public void nms_v0(final double threshold) {
         final long start = System.currentTimeMillis();
-        // TODO: apply same trick (bbox search window) as in c++ version
-        Arrays.fill(suppressed, false);
-        winner.clear();
-        final int n = polygons.size();
+        clearSuppressed();
+        clearOverlapTests();
+        final Grid grid = grid();
+        final Neighbours neighbours = new Neighbours();
+        int[] winner = new int[64];
+        int numWinners = 0;
         for (int ii = 0; ii < n; ii++) {
-            final int i = score_indices.get(ii);
-            if (suppressed[i]) continue;
-            winner.add(i);
-            final Box2D bbox = bboxes.get(i);
-            for (int jj = ii+1; jj < n; jj++) {
-                final int j = score_indices.get(jj);
-                if (suppressed[j]) continue;
-                if (bbox.does_intersect(bboxes.get(j))) {
-                    final double area_inter = poly_intersection_area(polygons.get(i), polygons.get(j));
-                    final double overlap = area_inter / Math.min(areas.get(i)+1e-10, areas.get(j)+1e-10);
-                    if (overlap > threshold)
-                        suppressed[j] = true;
-                }
+            final int i = score_indices[ii];
+            if (isSuppressed(i)) continue;
+            if (numWinners == winner.length) winner = Arrays.copyOf(winner, 2*numWinners);
+            winner[numWinners++] = i;
+            final long[] polyI = polygon(i);
+            // only lower-ranked candidates whose (conservative) bbox intersects the one of i
+            grid.below(ii, neighbours);
+            for (int k = 0; k < neighbours.size; k++) {
+                final int j = neighbours.found[k];
+                if (isSuppressed(j)) continue;
+                if (overlaps(i, polyI, j, threshold))
+                    suppress(j);
             }
         }
+        this.winner = Arrays.copyOf(winner, numWinners);
+        releaseSuppressed();
         if (verbose)
-            log.info(String.format("Candidates NMS took %d ms", System.currentTimeMillis() - start));
+            log.info(String.format("Candidates NMS took %d ms, overlap tests decided by %s", System.currentTimeMillis() - start, overlapTestsSummary()));
     }
 
+    // same result as nms_v0, but with the image divided into blocks of candidates (by origin) that are processed in parallel.
+    // within each block, candidates are processed in score order and a candidate suppressed by a winner of the same block is
+    // done. otherwise, it is "dirty" if its status may depend on other blocks, i.e. if a higher-ranked candidate of another
+    // block overlaps it by more than the threshold, or if the bbox of a higher-ranked dirty candidate of the same block
+    // intersects its own. if it's not dirty, it is a winner and suppresses candidates of the same block as usual.
+    // the remaining dirty candidates are then resolved sequentially in score order: a candidate is a winner
+    // if no higher-ranked winner (of any block) overlaps it by more than the threshold.
     public void nms(final double threshold) {
+        final int blockSize = PARALLELISM == 1 ? Math.max(width, height) :
+            Math.max(MIN_NMS_BLOCK_SIZE, (int)Math.ceil(Math.sqrt((double)width*height / (BLOCKS_PER_THREAD*PARALLELISM))));
+        nms(threshold, blockSize);
+    }
+
+    private void nms(final double threshold, final int blockSize) {
+        final long start = System.currentTimeMillis();
+        clearSuppressed();
+        clearOverlapTests();
+        final Grid grid = grid();
+        final ThreadLocal<Neighbours> neighbours = ThreadLocal.withInitial(Neighbours::new);
+
+        // candidate ranks grouped by block, in ascending order
+        final int blocksX = Math.max(1, (width + blockSize - 1) / blockSize), blocksY = Math.max(1, (height + blockSize - 1) / blockSize);
+        final int numBlocks = blocksX * blocksY;
+        final int[] block = new int[n];
+        final int[] blockStart = new int[numBlocks+1];
+        for (int i = 0; i < n; i++) {
+            block[i] = Math.min(blocksX-1, origins[2*i]/blockSize) + blocksX*Math.min(blocksY-1, origins[2*i+1]/blockSize);
+            blockStart[block[i]+1]++;
+        }
+        for (int b = 0; b < numBlocks; b++)
+            blockStart[b+1] += blockStart[b];
+        final int[] blockRanks = new int[n];
+        final int[] fill = Arrays.copyOf(blockStart, numBlocks);
+        for (int ii = 0; ii < n; ii++)
+            blockRanks[fill[block[score_indices[ii]]]++] = ii;
+
+        final boolean[] dirty = new boolean[n];
+        final boolean[] won = new boolean[n];
+
+        // greedy suppression within each block
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            final Neighbours nb = neighbours.get();
+            for (int h = blockStart[b]; h < blockStart[b+1]; h++) {
+                final int ii = blockRanks[h], i = score_indices[ii];
+                if (isSuppressed(i)) continue;
+                final long[] polyI = polygon(i);
+                if (!dirty[i] && numBlocks > 1) {
+                    grid.above(ii, nb);
+                    for (int k = 0; k < nb.size && !dirty[i]; k++) {
+                        final int g = nb.found[k];
+                        dirty[i] = block[g] != b && overlaps(g, polygon(g), i, polyI, threshold);
+                    }
+                }
+                grid.below(ii, nb);
+                if (dirty[i]) {
+                    // status of i not known yet, hence also not of the candidates it may suppress
+                    for (int k = 0; k < nb.size; k++) {
+                        final int j = nb.found[k];
+                        if (block[j] != b || isSuppressed(j) || dirty[j]) continue;
+                        if (bboxesIntersect(polyI, polygon(j)))
+                            dirty[j] = true;
+                    }
+                } else {
+                    won[i] = true;
+                    for (int k = 0; k < nb.size; k++) {
+                        final int j = nb.found[k];
+                        if (block[j] != b || isSuppressed(j)) continue;
+                        if (overlaps(i, polyI, j, threshold))
+                            suppress(j);
+                    }
+                }
+            }
+        });
+
+        // remaining dirty candidates in score order
+        final Neighbours nb = neighbours.get();
+        int numDirty = 0;
+        for (int ii = 0; ii < n; ii++) {
+            final int i = score_indices[ii];
+            if (!dirty[i] || isSuppressed(i)) continue;
+            numDirty++;
+            final long[] polyI = polygon(i);
+            grid.above(ii, nb);
+            boolean suppressed = false;
+            for (int k = 0; k < nb.size && !suppressed; k++) {
+                final int h = nb.found[k];
+                suppressed = won[h] && overlaps(h, polygon(h), i, polyI, threshold);
+            }
+            if (suppressed) suppress(i);
+            else won[i] = true;
+        }
+
+        int numWinners = 0;
+        final int[] winner = new int[n];
+        for (int ii = 0; ii < n; ii++)
+            if (won[score_indices[ii]])
+                winner[numWinners++] = score_indices[ii];
+        this.winner = Arrays.copyOf(winner, numWinners);
+        releaseSuppressed();
+        if (verbose)
+            log.info(String.format("Candidates NMS took %d ms (%d blocks, %d candidates resolved across blocks), overlap tests decided by %s",
+                    System.currentTimeMillis() - start, numBlocks, numDirty, overlapTestsSummary()));
+    }
+
+    // true if the polygons of i and j overlap by more than threshold (relative to the smaller of both)
+    private boolean overlaps(final int i, final long[] polyI, final int j, final double threshold) {
+        return overlaps(i, polyI, j, polygon(j), threshold);
+    }
+
+    // cascade of cheap tests first, each one either decides the pair or passes it on:
+    // 1. disjoint bboxes
+    // 2. the intersection area of both bboxes is an upper bound of the polygon intersection area
+    // 3. so is the intersection area of the circumscribed circles (centered at the origins, see radius)
+    // 4. if the circumscribed circle of one polygon is inside the inscribed circle of the other (see polygon),
+    //    the intersection area is the area of the former
+    // 5. the intersection area of the inscribed circles is a lower bound of the polygon intersection area
+    // 6. exact polygon intersection area
+    private boolean overlaps(final int i, final long[] polyI, final int j, final long[] polyJ, final double threshold) {
+        if (!bboxesIntersect(polyI, polyJ)) {
+            overlapTests[OVERLAP_BBOX].increment();
+            return false;
+        }
+        final double area_min = Math.min(areas[i]+1e-10, areas[j]+1e-10);
+        final double limit = threshold * area_min;
+
+        final int o = 2*nrays;
+        final double bbox_inter = (double)(Math.min(polyI[o+1], polyJ[o+1]) - Math.max(polyI[o  ], polyJ[o  ])) *
+                                          (Math.min(polyI[o+3], polyJ[o+3]) - Math.max(polyI[o+2], polyJ[o+2]));
+        if (bbox_inter * (1+BOUND_EPS) <= limit) {
+            overlapTests[OVERLAP_BBOX_AREA].increment();
+            return false;
+        }
+
+        final double d = S * Math.hypot(origins[2*i] - origins[2*j], origins[2*i+1] - origins[2*j+1]);
+        if (circle_intersection_area(radii[i], radii[j], d) * (1+BOUND_EPS) <= limit) {
+            overlapTests[OVERLAP_OUTER_CIRCLES].increment();
+            return false;
+        }
+
+        final double area_contained = d + radii[j] <= inner[i] ? areas[j] : d + radii[i] <= inner[j] ? areas[i] : -1;
+        if (area_contained >= 0 && Math.abs(area_contained - limit) > BOUND_EPS * area_min) {
+            overlapTests[OVERLAP_CONTAINED].increment();
+            return area_contained > limit;
+        }
+
+        if (circle_intersection_area(inner[i], inner[j], d) * (1-BOUND_EPS) > limit) {
+            overlapTests[OVERLAP_INNER_CIRCLES].increment();
+            return true;
+        }
+
+        overlapTests[OVERLAP_EXACT].increment();
+        final double overlap = poly_intersection_area(i, polyI, j, polyJ) / area_min;
+        return overlap > threshold;
+    }
+
+    // lower and upper bound of the overlap of i and j (as returned by overlap), from the bbox and containment tests of
+    // overlaps (the circle intersection areas are comparatively expensive, only disjoint circumscribed circles are used).
+    // returns false if the polygons can't overlap
+    private boolean overlapBounds(final int i, final long[] polyI, final int j, final long[] polyJ, final double[] bounds) {
+        if (!bboxesIntersect(polyI, polyJ)) return false;
+        final double area_min = Math.min(areas[i]+1e-10, areas[j]+1e-10);
+        final int o = 2*nrays;
+        final double bbox_inter = (double)(Math.min(polyI[o+1], polyJ[o+1]) - Math.max(polyI[o  ], polyJ[o  ])) *
+                                          (Math.min(polyI[o+3], polyJ[o+3]) - Math.max(polyI[o+2], polyJ[o+2]));
+        if (bbox_inter <= 0) return false;
+        final double dx = origins[2*i] - origins[2*j], dy = origins[2*i+1] - origins[2*j+1];
+        final double d = S * Math.sqrt(dx*dx + dy*dy);
+        if (d >= (double)radii[i] + radii[j]) return false;
+        final double area_contained = d + radii[j] <= inner[i] ? areas[j] : d + radii[i] <= inner[j] ? areas[i] : -1;
+        bounds[0] = area_contained >= 0 ? area_contained * (1-BOUND_EPS) / area_min : 0;
+        bounds[1] = (area_contained >= 0 ? area_contained : bbox_inter) * (1+BOUND_EPS) / area_min;
+        return true;
+    }
+
+    // overlap of the polygons of i and j relative to the smaller of both (as in overlaps, but without threshold)
+    private double overlap(final int i, final long[] polyI, final int j, final long[] polyJ) {
+        if (!bboxesIntersect(polyI, polyJ)) return 0;
+        return poly_intersection_area(i, polyI, j, polyJ) / Math.min(areas[i]+1e-10, areas[j]+1e-10);
+    }
+
+    // intersection area of two circles with radii r1, r2 and distance d of their centers
+    private static double circle_intersection_area(final double r1, final double r2, final double d) {
+        if (d >= r1 + r2) return 0;
+        final double r = Math.min(r1, r2);
+        if (d <= Math.abs(r1 - r2)) return Math.PI * r * r;
+        final double a1 = Math.acos(Math.max(-1, Math.min(1, (d*d + r1*r1 - r2*r2) / (2*d*r1))));
+        final double a2 = Math.acos(Math.max(-1, Math.min(1, (d*d + r2*r2 - r1*r1) / (2*d*r2))));
+        final double kite = Math.sqrt(Math.max(0, (-d+r1+r2) * (d+r1-r2) * (d-r1+r2) * (d+r1+r2)));
+        return r1*r1*a1 + r2*r2*a2 - 0.5*kite;
+    }
+
+    // same result as nms_v0, but based on the overlap graph (see OverlapGraph). building the graph once is more expensive
+    // than a single nms, but afterwards suppression for any threshold is a cheap walk over the graph
+    public void nms_graph(final double threshold) {
+        nms_graph(Double.NEGATIVE_INFINITY, threshold);
+    }
+
+    // as above, but only for the candidates with a score above probThreshold (candidates with a score
+    // below the threshold given to the constructor don't exist, hence lower values have no effect)
+    public void nms_graph(final double probThreshold, final double threshold) {
+        final OverlapGraph graph = overlapGraph();
         final long start = System.currentTimeMillis();
-        // TODO: apply same trick (bbox search window) as in c++ version
-        Arrays.fill(suppressed, false);
-        winner.clear();
-        final int n = polygons.size();
+        final boolean[] suppressed = new boolean[n];
+        int[] winner = new int[64];
+        int numWinners = 0, numExact = 0;
         for (int ii = 0; ii < n; ii++) {
-            final int i = score_indices.get(ii);
+            final int i = score_indices[ii];
+            if (scores[i] <= probThreshold) break;
             if (suppressed[i]) continue;
-            winner.add(i);
-            final Box2D bbox = bboxes.get(i);
-            // 
-            IntStream.range(ii+1, n)
-            .parallel()
-            // .peek(val -> System.out.println(Thread.currentThread().getName()))
-            .forEach(jj -> {
-                final int j = score_indices.get(jj);
-                if (suppressed[j]) return;
-                if (bbox.does_intersect(bboxes.get(j))) {
-                    final double area_inter = poly_intersection_area(polygons.get(i), polygons.get(j));
-                    final double overlap = area_inter / Math.min(areas.get(i)+1e-10, areas.get(j)+1e-10);
-                    if (overlap > threshold)
-                        suppressed[j] = true;
+            if (numWinners == winner.length) winner = Arrays.copyOf(winner, 2*numWinners);
+            winner[numWinners++] = i;
+            for (int e = graph.start[ii]; e < graph.start[ii+1]; e++) {
+                final int j = graph.target[e];
+                if (graph.lower[e] > threshold) {
+                    suppressed[j] = true;
+                } else if (graph.upper[e] > threshold) {
+                    // bounds don't decide, exact overlap is kept for the next call
+                    final double overlap = overlap(i, polygon(i), j, polygon(j));
+                    graph.lower[e] = roundDown(overlap);
+                    graph.upper[e] = roundUp(overlap);
+                    suppressed[j] |= overlap > threshold;
+                    numExact++;
+                }
+            }
+        }
+        this.winner = Arrays.copyOf(winner, numWinners);
+        if (verbose)
+            log.info(String.format("Candidates NMS (overlap graph) took %d ms (%d exact overlaps)", System.currentTimeMillis() - start, numExact));
+    }
+
+    // graph is built on first use and reused by subsequent calls of nms_graph
+    private OverlapGraph overlapGraph() {
+        if (overlapGraph == null) {
+            final long start = System.currentTimeMillis();
+            overlapGraph = new OverlapGraph(grid());
+            if (verbose)
+                log.info(String.format("Candidates overlap graph (%d pairs) took %d ms", overlapGraph.target.length, System.currentTimeMillis() - start));
+        }
+        return overlapGraph;
+    }
+
+    // sparse graph of all pairs of possibly overlapping candidates, i.e. for every candidate (by rank) the lower-ranked
+    // ones that it may overlap with lower and upper bounds of the overlap (see overlapBounds). the edges of rank ii are
+    // [start[ii],start[ii+1]) of target, lower and upper. the bounds are computed in parallel for chunks of consecutive
+    // ranks and replaced by the exact overlap once needed (see nms_graph). requires 12 bytes per pair of candidates
+    private final class OverlapGraph {
+        final int[] start;
+        final int[] target;
+        final float[] lower, upper;
+
+        OverlapGraph(final Grid grid) {
+            final ThreadLocal<Neighbours> neighbours = ThreadLocal.withInitial(Neighbours::new);
+            final int numChunks = (n + GRAPH_CHUNK_SIZE - 1) / GRAPH_CHUNK_SIZE;
+            final Edges[] chunks = new Edges[numChunks];
+            IntStream.range(0, numChunks).parallel().forEach(c -> {
+                final Neighbours nb = neighbours.get();
+                final Edges edges = new Edges();
+                final double[] bounds = new double[2];
+                for (int ii = c*GRAPH_CHUNK_SIZE; ii < Math.min(n, (c+1)*GRAPH_CHUNK_SIZE); ii++) {
+                    final int i = score_indices[ii];
+                    final long[] polyI = polygon(i);
+                    grid.below(ii, nb);
+                    for (int k = 0; k < nb.size; k++) {
+                        final int j = nb.found[k];
+                        if (overlapBounds(i, polyI, j, polygon(j), bounds))
+                            edges.add(j, roundDown(bounds[0]), roundUp(bounds[1]));
+                    }
+                    edges.end(ii - c*GRAPH_CHUNK_SIZE);
                 }
+                chunks[c] = edges;
             });
+
+            int m = 0;
+            for (final Edges edges : chunks) m += edges.m;
+            start = new int[n+1];
+            target = new int[m];
+            lower = new float[m];
+            upper = new float[m];
+            m = 0;
+            for (int c = 0; c < numChunks; c++) {
+                final Edges edges = chunks[c];
+                for (int h = 0; h < edges.ends; h++)
+                    start[c*GRAPH_CHUNK_SIZE + h + 1] = m + edges.end[h];
+                System.arraycopy(edges.target, 0, target, m, edges.m);
+                System.arraycopy(edges.lower,  0, lower,  m, edges.m);
+                System.arraycopy(edges.upper,  0, upper,  m, edges.m);
+                m += edges.m;
+                chunks[c] = null;
+            }
+        }
+    }
+
+    // edges of one chunk of the overlap graph, grown on demand. end[h] is the end of the edges of the h-th rank of the chunk
+    private static final class Edges {
+        int m = 0, ends = 0;
+        int[] end = new int[GRAPH_CHUNK_SIZE];
+        int[] target = new int[64];
+        float[] lower = new float[64], upper = new float[64];
+
+        void add(final int j, final float lo, final float hi) {
+            if (m == target.length) {
+                target = Arrays.copyOf(target, 2*m);
+                lower = Arrays.copyOf(lower, 2*m);
+                upper = Arrays.copyOf(upper, 2*m);
+            }
+            target[m] = j;
+            lower[m] = lo;
+            upper[m] = hi;
+            m++;
+        }
+
+        void end(final int h) {
+            end[h] = m;
+            ends = h+1;
+        }
+    }
+
+    // float bounds of a double value
+    private static float roundDown(final double v) {
+        final float f = (float)v;
+        return f > v ? Math.nextDown(f) : f;
+    }
+
+    private static float roundUp(final double v) {
+        final float f = (float)v;
+        return f < v ? Math.nextUp(f) : f;
+    }
+
+    // approximate nms on the pixel grid: winners are painted into a label image in score order and a candidate's
+    // polygon is scanned over its pixels (those whose centers are inside). a candidate is suppressed if the fraction of
+    // its pixels already covered by winners exceeds the threshold, or if the pixels shared with a single winner exceed the
+    // threshold relative to the pixel area of the smaller of both (as in nms, e.g. for a small winner inside of it).
+    // pixels covered by several winners only count for the first (highest-scoring) one. the cost grows with the object
+    // areas instead of the number of neighbouring candidates. on synthetic images, the winners agree with nms to about
+    // 97-99% (F1 score), differences are due to the pixel discretization and overlaps with several winners.
+    // requires a label array of the whole image, i.e. not supported for images with more than 2^31 pixels
+    public void nms_raster(final double threshold) {
+        if ((long)width*height > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException(String.format("Rasterized NMS not supported for images with more than %d pixels", Integer.MAX_VALUE - 8));
+        final long start = System.currentTimeMillis();
+        clearSuppressed();
+        final int[] labels = new int[width*height];
+        final Raster raster = new Raster();
+        int[] winner = new int[64];
+        int[] winnerPixels = new int[64];
+        int[] shared = new int[64];
+        int[] touched = new int[64];
+        int numWinners = 0;
+        for (int ii = 0; ii < n; ii++) {
+            final int i = score_indices[ii];
+            final long[] polyI = polygon(i);
+            raster.scan(polyI);
+            // pixels already covered by each winner
+            int numTouched = 0;
+            for (int s = 0; s < raster.numSpans; s++) {
+                final int row = width*raster.spans[3*s];
+                for (int p = row + raster.spans[3*s+1]; p <= row + raster.spans[3*s+2]; p++) {
+                    final int w = labels[p] - 1;
+                    if (w < 0) continue;
+                    if (shared[w]++ == 0) {
+                        if (numTouched == touched.length) touched = Arrays.copyOf(touched, 2*numTouched);
+                        touched[numTouched++] = w;
+                    }
+                }
+            }
+            int covered = 0;
+            for (int t = 0; t < numTouched; t++)
+                covered += shared[touched[t]];
+            boolean overlaps = covered / (raster.numPixels+1e-10) > threshold;
+            for (int t = 0; t < numTouched; t++) {
+                final int w = touched[t];
+                final double overlap = shared[w] / Math.min(winnerPixels[w]+1e-10, raster.numPixels+1e-10);
+                overlaps |= overlap > threshold;
+                shared[w] = 0;
+            }
+            if (overlaps) {
+                suppress(i);
+                continue;
+            }
+            if (numWinners == winner.length) {
+                winner = Arrays.copyOf(winner, 2*numWinners);
+                winnerPixels = Arrays.copyOf(winnerPixels, 2*numWinners);
+                shared = Arrays.copyOf(shared, 2*numWinners);
+            }
+            winner[numWinners] = i;
+            winnerPixels[numWinners] = raster.numPixels;
+            numWinners++;
+            for (int s = 0; s < raster.numSpans; s++) {
+                final int row = width*raster.spans[3*s];
+                for (int p = row + raster.spans[3*s+1]; p <= row + raster.spans[3*s+2]; p++)
+                    if (labels[p] == 0) labels[p] = numWinners;
+            }
         }
+        this.winner = Arrays.copyOf(winner, numWinners);
+        releaseSuppressed();
         if (verbose)
-            log.info(String.format("Candidates NMS took %d ms", System.currentTimeMillis() - start));
+            log.info(String.format("Candidates NMS (rasterized) took %d ms", System.currentTimeMillis() - start));
+    }
+
+    // pixels of a polygon as horizontal spans (row, first column, last column), clipped to the image.
+    // a pixel belongs to the polygon if its center is inside (left and top edges inclusive)
+    private final class Raster {
+        int[] spans = new int[3*64];
+        int numSpans, numPixels;
+        private final double[] crossings = new double[nrays];
+
+        void scan(final long[] poly) {
+            numSpans = numPixels = 0;
+            final int o = 2*nrays;
+            final int vmin = (int)Math.max(0, Math.floorDiv(poly[o+2] + S - 1, S)), vmax = (int)Math.min(height-1, Math.floorDiv(poly[o+3], S));
+            for (int v = vmin; v <= vmax; v++) {
+                final long y = S*v;
+                int m = 0;
+                for (int k = 0, k1 = 1; k < nrays; k++, k1 = (k1+1 == nrays ? 0 : k1+1)) {
+                    final long y0 = poly[nrays+k], y1 = poly[nrays+k1];
+                    if ((y0 <= y && y < y1) || (y1 <= y && y < y0)) {
+                        final double x = poly[k] + (double)(y - y0) * (poly[k1] - poly[k]) / (y1 - y0);
+                        // insertion sort, there are only few crossings
+                        int c = m++;
+                        while (c > 0 && crossings[c-1] > x) { crossings[c] = crossings[c-1]; c--; }
+                        crossings[c] = x;
+                    }
+                }
+                for (int c = 0; c+1 < m; c += 2) {
+                    final int ufrom = (int)Math.max(0, Math.ceil(crossings[c] / S));
+                    final int uto = (int)Math.min(width-1, Math.ceil(crossings[c+1] / S) - 1);
+                    if (ufrom > uto) continue;
+                    if (3*numSpans == spans.length) spans = Arrays.copyOf(spans, 2*spans.length);
+                    spans[3*numSpans] = v; spans[3*numSpans+1] = ufrom; spans[3*numSpans+2] = uto;
+                    numSpans++;
+                    numPixels += uto - ufrom + 1;
+                }
+            }
+        }
+    }
+
+    // grid is built on first use and reused by subsequent calls of nms
+    private Grid grid() {
+        if (grid == null) {
+            final long start = System.currentTimeMillis();
+            grid = new Grid();
+            if (verbose)
+                log.info(String.format("Candidates grid (%d x %d cells, %d large candidates) took %d ms",
+                        grid.nx, grid.ny, grid.large.length, System.currentTimeMillis() - start));
+        }
+        return grid;
+    }
+
+    // uniform grid over the conservative bboxes of all candidates (see bboxesIntersect), to find the lower- or
+    // higher-ranked candidates whose bbox intersects the one of a given candidate without looking at all of them.
+    // a candidate is added to every cell its bbox covers, candidates covering too many cells are kept in a separate list.
+    // the cells hold candidate ranks (positions in score_indices) in ascending order
+    private final class Grid {
+        final long x0, y0, cell;
+        final int nx, ny;
+        final int[] cellStart, cellRanks;
+        final int[] large;
+
+        Grid() {
+            long xmin = Long.MAX_VALUE, xmax = Long.MIN_VALUE;
+            long ymin = Long.MAX_VALUE, ymax = Long.MIN_VALUE;
+            long diameters = 0;
+            for (int i = 0; i < n; i++) {
+                xmin = Math.min(xmin, S*origins[2*i  ] - radii[i]); xmax = Math.max(xmax, S*origins[2*i  ] + radii[i]);
+                ymin = Math.min(ymin, S*origins[2*i+1] - radii[i]); ymax = Math.max(ymax, S*origins[2*i+1] + radii[i]);
+                diameters += 2*radii[i];
+            }
+            if (n == 0) xmin = xmax = ymin = ymax = 0;
+            x0 = xmin; y0 = ymin;
+            // cells about the size of an average candidate, but not many more cells than candidates
+            final double extent = (double)(xmax - xmin + 1) * (ymax - ymin + 1);
+            cell = Math.max(Math.max(1, diameters / Math.max(1, n)), (long)Math.ceil(Math.sqrt(extent / Math.max(1, GRID_CELLS_PER_CANDIDATE*n))));
+            nx = (int)((xmax - xmin) / cell) + 1;
+            ny = (int)((ymax - ymin) / cell) + 1;
+
+            cellStart = new int[nx*ny+1];
+            int numLarge = 0;
+            for (int i = 0; i < n; i++) {
+                if (isLarge(i)) { numLarge++; continue; }
+                for (int cy = cellY(S*origins[2*i+1] - radii[i]); cy <= cellY(S*origins[2*i+1] + radii[i]); cy++)
+                    for (int cx = cellX(S*origins[2*i] - radii[i]); cx <= cellX(S*origins[2*i] + radii[i]); cx++)
+                        cellStart[cx + nx*cy + 1]++;
+            }
+            for (int c = 0; c < nx*ny; c++)
+                cellStart[c+1] += cellStart[c];
+            cellRanks = new int[cellStart[nx*ny]];
+            large = new int[numLarge];
+            final int[] fill = Arrays.copyOf(cellStart, nx*ny);
+            numLarge = 0;
+            for (int ii = 0; ii < n; ii++) {
+                final int i = score_indices[ii];
+                if (isLarge(i)) { large[numLarge++] = ii; continue; }
+                for (int cy = cellY(S*origins[2*i+1] - radii[i]); cy <= cellY(S*origins[2*i+1] + radii[i]); cy++)
+                    for (int cx = cellX(S*origins[2*i] - radii[i]); cx <= cellX(S*origins[2*i] + radii[i]); cx++)
+                        cellRanks[fill[cx + nx*cy]++] = ii;
+            }
+        }
+
+        int cellX(final long x) { return (int)((x - x0) / cell); }
+        int cellY(final long y) { return (int)((y - y0) / cell); }
+
+        boolean isLarge(final int i) {
+            final long cells = 2*radii[i] / cell + 2;
+            return cells * cells > MAX_GRID_CELLS_PER_CANDIDATE;
+        }
+
+        // collects all candidates ranked below ii whose bbox intersects the one of candidate score_indices[ii]
+        void below(final int ii, final Neighbours out) {
+            collect(ii, true, out);
+        }
+
+        // collects all candidates ranked above ii whose bbox intersects the one of candidate score_indices[ii]
+        void above(final int ii, final Neighbours out) {
+            collect(ii, false, out);
+        }
+
+        // a pair of candidates is only considered in the cell that contains the lower left corner of the
+        // intersection of their bboxes, hence every candidate is found at most once
+        private void collect(final int ii, final boolean below, final Neighbours out) {
+            out.size = 0;
+            final int i = score_indices[ii];
+            final long xi = S*origins[2*i], yi = S*origins[2*i+1];
+            final int cxmin = cellX(xi - radii[i]), cxmax = Math.min(nx-1, cellX(xi + radii[i]));
+            final int cymin = cellY(yi - radii[i]), cymax = Math.min(ny-1, cellY(yi + radii[i]));
+            for (int cy = cymin; cy <= cymax; cy++) {
+                for (int cx = cxmin; cx <= cxmax; cx++) {
+                    final int c = cx + nx*cy;
+                    final int from = below ? cellStart[c+1]-1 : cellStart[c], to = below ? cellStart[c]-1 : cellStart[c+1], step = below ? -1 : 1;
+                    for (int h = from; h != to; h += step) {
+                        final int jj = cellRanks[h];
+                        if (below ? jj <= ii : jj >= ii) break;
+                        final int j = score_indices[jj];
+                        if (!bboxesIntersect(i, j)) continue;
+                        if (cellX(Math.max(xi - radii[i], S*origins[2*j  ] - radii[j])) != cx ||
+                            cellY(Math.max(yi - radii[i], S*origins[2*j+1] - radii[j])) != cy) continue;
+                        out.add(j);
+                    }
+                }
+            }
+            final int from = below ? large.length-1 : 0, to = below ? -1 : large.length, step = below ? -1 : 1;
+            for (int h = from; h != to && (below ? large[h] > ii : large[h] < ii); h += step) {
+                final int j = score_indices[large[h]];
+                if (bboxesIntersect(i, j))
+                    out.add(j);
+            }
+        }
+    }
+
+    // candidates found by Grid, one instance per thread
+    private static final class Neighbours {
+        int[] found = new int[64];
+        int size = 0;
+
+        void add(final int j) {
+            if (size == found.length) found = Arrays.copyOf(found, 2*size);
+            found[size++] = j;
+        }
     }
 
     private double poly_intersection_area(final Path a, final Path b) {
@@ -162,45 +1262,161 @@ public class Candidates {
             area_inter += p.area();
         return area_inter;
     }
+
+    // with the selected algorithm (see setIntersection). a ray <= 0 (e.g. slightly negative output of the distance
+    // prediction) puts its vertex on the other side of the origin, i.e. the polygon may intersect itself or not be
+    // star-convex. the signed triangles of the specialized routine then deviate from Clipper's area, hence Clipper is used
+    private double poly_intersection_area(final int i, final long[] polyI, final int j, final long[] polyJ) {
+        return intersection == Intersection.CLIPPER || nonPositiveRay[i] || nonPositiveRay[j]
+            ? poly_intersection_area(toPath(polyI), toPath(polyJ))
+            : star_convex_intersection_area(i, polyI, j, polyJ);
+    }
+
+    // specialized for star-convex polygons, allocation-free (apart from one scratch object per thread)
+    private double star_convex_intersection_area(final int i, final long[] polyI, final int j, final long[] polyJ) {
+        return starConvex.get().area(polyI, S*origins[2*i], S*origins[2*i+1], polyJ, S*origins[2*j], S*origins[2*j+1]);
+    }
+
+    // conservative test based on the origins and radii of both candidates, doesn't require their polygons
+    private boolean bboxesIntersect(final int i, final int j) {
+        final long r = (long)radii[i] + radii[j];
+        return ( Math.abs(S*((long)origins[2*i  ] - origins[2*j  ])) <= r &&
+                 Math.abs(S*((long)origins[2*i+1] - origins[2*j+1])) <= r );
+    }
+
+    // exact test based on the polygon vertices
+    private boolean bboxesIntersect(final long[] a, final long[] b) {
+        final int o = 2*nrays;
+        return ( b[o  ] <= a[o+1] &&
+                 a[o  ] <= b[o+1] &&
+                 b[o+2] <= a[o+3] &&
+                 a[o+2] <= b[o+3] );
+    }
+
+    // ---------
+
+    // polygon of candidate i, computed on first access (from any thread) and cached. layout of the returned
+    // array: vertex x coordinates at [0,nrays), y coordinates at [nrays,2*nrays), bbox (xmin,xmax,ymin,ymax) after that
+    private long[] polygon(final int i) {
+        long[] poly = polygons.get(i);
+        if (poly == null) {
+            final int x0 = origins[2*i], y0 = origins[2*i+1];
+            final float[] d = new float[nrays];
+            rays.read(i, x0, y0, d);
+            float minRay = Float.MAX_VALUE;
+            for (int k = 0; k < nrays; k++)
+                minRay = Math.min(minRay, d[k]);
+            poly = new long[2*nrays+4];
+            long xmin = Long.MAX_VALUE, xmax = Long.MIN_VALUE;
+            long ymin = Long.MAX_VALUE, ymax = Long.MIN_VALUE;
+            for (int k = 0; k < nrays; k++) {
+                long x = Math.round(S * (x0 + (double)d[k] * cos[k]));
+                long y = Math.round(S * (y0 + (double)d[k] * sin[k]));
+                xmin = Math.min(xmin,x);
+                ymin = Math.min(ymin,y);
+                xmax = Math.max(xmax,x);
+                ymax = Math.max(ymax,y);
+                poly[k] = x;
+                poly[nrays+k] = y;
+            }
+            poly[2*nrays  ] = xmin; poly[2*nrays+1] = xmax;
+            poly[2*nrays+2] = ymin; poly[2*nrays+3] = ymax;
+            // area and inscribed circle are written before the polygon is published, hence visible to all threads that see the polygon
+            areas[i] = Utils.polygonArea(poly, 0, nrays);
+            // radius of a circle at the origin inside the polygon: every edge is at least minRay*cos(pi/nrays) away
+            // from the origin, minus a margin for the rounding of the vertex coordinates
+            inner[i] = Math.max(0, S * minRay * Math.cos(Math.PI / nrays) - 1);
+            nonPositiveRay[i] = minRay <= 0;
+            polygons.set(i, poly);
+        }
+        return poly;
+    }
+
+    private Path toPath(final long[] poly) {
+        final Path path = new Path(nrays);
+        for (int k = 0; k < nrays; k++)
+            path.add(new LongPoint(poly[k], poly[nrays+k]));
+        return path;
+    }
+
+    private boolean isSuppressed(final int i) {
+        return (suppressed.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    private void suppress(final int i) {
+        // atomic since several threads may suppress candidates that share the same word
+        suppressed.getAndAccumulate(i >>> 6, 1L << i, (a, b) -> a | b);
+    }
+
+    private void clearOverlapTests() {
+        for (final LongAdder count : overlapTests)
+            count.reset();
+    }
+
+    private String overlapTestsSummary() {
+        final StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < overlapTests.length; s++)
+            sb.append(s == 0 ? "" : ", ").append(OVERLAP_STAGES[s]).append(": ").append(overlapTests[s].sum());
+        return sb.toString();
+    }
+
+    private void clearSuppressed() {
+        for (int w = 0; w < suppressed.length(); w++)
+            suppressed.set(w, 0);
+    }
+
+    // polygons of suppressed candidates are not needed anymore (would be computed again if necessary)
+    private void releaseSuppressed() {
+        for (int i = 0; i < n; i++)
+            if (isSuppressed(i))
+                polygons.set(i, null);
+    }
+
+    // ---------
+
+    public void setIntersection(final Intersection intersection) {
+        if (intersection != this.intersection)
+            overlapGraph = null;
+        this.intersection = intersection;
+    }
     
+    // number of pairs decided by each stage of the overlap test during the last nms (see OVERLAP_BBOX etc.)
+    public long[] getOverlapTestCounts() {
+        final long[] counts = new long[overlapTests.length];
+        for (int s = 0; s < counts.length; s++)
+            counts[s] = overlapTests[s].sum();
+        return counts;
+    }
+
     public List<Integer> getWinner() {
-        return winner;
+        return Utils.asList(winner, winner.length);
     }
     
     public List<Integer> getSorted() {
-        return score_indices;
+        return Utils.asList(score_indices, score_indices.length);
     }
-    
-//    public Point2D getOrigin(int i) {
-//        return origins.get(i);
-//    }
-    
-//    public Path getPolygon(int i) {
-//        return polygons.get(i);
-//    }
-
-//    public Box2D getBbox(int i) {
-//        return bboxes.get(i);
-//    }
 
-//    public float getScore(int i) {
-//        return scores.get(i);
-//    }
+    // indices of the candidates that survived non-maximum suppression, ordered by score (don't modify)
+    public int[] getWinnerIndices() {
+        return winner;
+    }
 
-//    public double getArea(int i) {
-//        return areas.get(i);
-//    }
+    // indices of all candidates, ordered by score (don't modify)
+    public int[] getSortedIndices() {
+        return score_indices;
+    }
     
     public PolygonRoi getPolygonRoi(int i) {
-        return Utils.toPolygonRoi(polygons.get(i), S);
+        return Utils.toPolygonRoi(polygon(i), 0, nrays, S);
     }
     
     public PointRoi getOriginRoi(int i) {
-        return Utils.toPointRoi(origins.get(i), S);
+        return Utils.toPointRoi(S*origins[2*i], S*origins[2*i+1], S);
     }
     
     public Roi getBboxRoi(int i) {
-        return Utils.toBoxRoi(bboxes.get(i), S);
+        final long[] poly = polygon(i);
+        return Utils.toBoxRoi(poly[2*nrays], poly[2*nrays+1], poly[2*nrays+2], poly[2*nrays+3], S);
     }
 
 
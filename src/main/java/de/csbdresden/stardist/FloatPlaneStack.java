@@ -0,0 +1,124 @@
+package de.csbdresden.stardist;
+
+import net.imagej.ImgPlus;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+// float image with dimensions (X,Y) or (X,Y,C) whose planes are (parts of) existing arrays, e.g. some channels of
+// a CNN prediction. the value at pixel x+width*y of plane c is planes[c][offsets[c]+x+width*y]. nothing is copied,
+// i.e. the planes are shared with the image they were taken from (see of)
+public class FloatPlaneStack extends FinalInterval implements RandomAccessibleInterval<FloatType> {
+
+    final int width, height;
+    final float[][] planes;
+    final int[] offsets;
+
+    FloatPlaneStack(final int width, final int height, final float[][] planes, final int[] offsets, final boolean squeeze) {
+        super(squeeze && planes.length == 1 ? new long[]{width, height} : new long[]{width, height, planes.length});
+        this.width = width;
+        this.height = height;
+        this.planes = planes;
+        this.offsets = offsets;
+    }
+
+    // all planes of a float ArrayImg or PlanarImg (or a FloatPlaneStack, also wrapped in an ImgPlus or ImgView) with X and Y
+    // as the first two dimensions, in the order of the remaining dimensions (first one fastest). returns null for other images
+    public static FloatPlaneStack of(RandomAccessibleInterval<FloatType> rai) {
+        if (rai instanceof ImgPlus)
+            rai = ((ImgPlus<FloatType>) rai).getImg();
+        if (rai instanceof ImgView)
+            rai = ((ImgView<FloatType>) rai).getSource();
+        if (rai instanceof FloatPlaneStack)
+            return (FloatPlaneStack) rai;
+        if (rai.numDimensions() < 2)
+            return null;
+        final long width = rai.dimension(0), height = rai.dimension(1);
+        long numPlanes = 1;
+        for (int d = 2; d < rai.numDimensions(); d++)
+            numPlanes *= rai.dimension(d);
+        if (width * height > Integer.MAX_VALUE || numPlanes > Integer.MAX_VALUE)
+            return null;
+        final int planeSize = (int) (width * height);
+        final float[][] planes = new float[(int) numPlanes][];
+        final int[] offsets = new int[(int) numPlanes];
+        if (rai instanceof ArrayImg) {
+            final Object access = ((ArrayImg<?,?>) rai).update(null);
+            if (!(access instanceof FloatArray) || (long) planeSize * numPlanes > Integer.MAX_VALUE)
+                return null;
+            final float[] data = ((FloatArray) access).getCurrentStorageArray();
+            for (int c = 0; c < numPlanes; c++) {
+                planes[c] = data;
+                offsets[c] = c * planeSize;
+            }
+        } else if (rai instanceof PlanarImg) {
+            final PlanarImg<?,?> img = (PlanarImg<?,?>) rai;
+            for (int c = 0; c < numPlanes; c++) {
+                final Object access = img.getPlane(c);
+                if (!(access instanceof FloatArray))
+                    return null;
+                planes[c] = ((FloatArray) access).getCurrentStorageArray();
+            }
+        } else {
+            return null;
+        }
+        return new FloatPlaneStack((int) width, (int) height, planes, offsets, false);
+    }
+
+    // planes [from,to) as (X,Y,C) image, or a single plane as (X,Y) image
+    public FloatPlaneStack planes(final int from, final int to, final boolean squeeze) {
+        final int n = to - from;
+        final float[][] p = new float[n][];
+        final int[] o = new int[n];
+        System.arraycopy(planes, from, p, 0, n);
+        System.arraycopy(offsets, from, o, 0, n);
+        return new FloatPlaneStack(width, height, p, o, squeeze);
+    }
+
+    @Override
+    public RandomAccess<FloatType> randomAccess() {
+        return new Access();
+    }
+
+    @Override
+    public RandomAccess<FloatType> randomAccess(final Interval interval) {
+        return randomAccess();
+    }
+
+    private final class Access extends Point implements RandomAccess<FloatType> {
+        // one per plane, pointing into its array
+        private final FloatType[] values = new FloatType[planes.length];
+
+        Access() {
+            super(FloatPlaneStack.this.numDimensions());
+            for (int c = 0; c < planes.length; c++)
+                values[c] = new FloatType(new FloatArray(planes[c]));
+        }
+
+        @Override
+        public FloatType get() {
+            final int c = n > 2 ? (int) position[2] : 0;
+            final FloatType value = values[c];
+            value.updateIndex(offsets[c] + (int) position[0] + width * (int) position[1]);
+            return value;
+        }
+
+        public Access copy() {
+            final Access access = new Access();
+            access.setPosition(this);
+            return access;
+        }
+
+        public Access copyRandomAccess() {
+            return copy();
+        }
+    }
+
+}
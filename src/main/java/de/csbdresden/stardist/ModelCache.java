@@ -0,0 +1,252 @@
+package de.csbdresden.stardist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+// persistent cache of model files (.zip) that can't be used in place (e.g. inside the plugin jar), stored under the
+// SHA-256 hash of their content. CSBDeep unpacks (and caches) a model based on its file name, hence a stable file name
+// also avoids unpacking the same model again. each entry has a metadata file (source, size, hash, last use) and is
+// checked before use (size always, content hash once per session). the least recently used entries are removed
+// if the cache grows larger than MAX_SIZE. processes sharing the cache (e.g. several batch jobs with the same home
+// directory) take turns via a file lock. if the cache can't be used (e.g. read-only or full home directory), the model
+// is copied to a temporary file instead (once per session)
+public class ModelCache {
+
+    private static final File DIR = new File(System.getProperty("user.home"), ".stardist" + File.separator + "models");
+    private static final long MAX_SIZE = 1L << 30;
+    // source (url, last modification, length) -> hash
+    private static final String INDEX = "index.properties";
+    private static final String LOCK = "cache.lock";
+    private static final String ZIP = ".zip", METADATA = ".properties";
+    // entries whose content hash has been checked in this session
+    private static final Set<String> verified = new HashSet<>();
+    // source -> temporary copy, if the cache can't be used
+    private static final Map<String, File> tmpFiles = new HashMap<>();
+
+    public static File getFile(final URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        final String source;
+        try {
+            source = String.format("%s@%d:%d", url, connection.getLastModified(), connection.getContentLengthLong());
+        } finally {
+            close(connection);
+        }
+        try {
+            return getCachedFile(url, source);
+        } catch (IOException e) {
+            return getTmpFile(url, source, e);
+        }
+    }
+
+    private static synchronized File getCachedFile(final URL url, final String source) throws IOException {
+        Files.createDirectories(DIR.toPath());
+        try (FileChannel channel = FileChannel.open(new File(DIR, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            return getCachedFileLocked(url, source);
+        }
+    }
+
+    private static File getCachedFileLocked(final URL url, final String source) throws IOException {
+        final File indexFile = new File(DIR, INDEX);
+        final Properties index = load(indexFile);
+
+        final String cached = index.getProperty(source);
+        if (cached != null) {
+            if (isValid(cached)) {
+                touch(cached);
+                return zipFile(cached);
+            }
+            remove(cached);
+        }
+
+        // copy (and hash) into a temporary file first, which is then moved into place
+        final File tmpFile = File.createTempFile("model_", ".tmp", DIR);
+        try {
+            final MessageDigest digest = sha256();
+            try (InputStream in = new DigestInputStream(openStream(url), digest)) {
+                Files.copy(in, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            final String hash = hex(digest.digest());
+            if (!isValid(hash)) {
+                Files.move(tmpFile.toPath(), zipFile(hash).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final Properties metadata = new Properties();
+                metadata.setProperty("source", url.toString());
+                metadata.setProperty("sha256", hash);
+                metadata.setProperty("size", Long.toString(zipFile(hash).length()));
+                save(metadata, metadataFile(hash));
+                verified.add(hash);
+            }
+            touch(hash);
+            index.setProperty(source, hash);
+            save(index, indexFile);
+            evict(hash);
+            return zipFile(hash);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    private static synchronized File getTmpFile(final URL url, final String source, final IOException cacheError) throws IOException {
+        final File cached = tmpFiles.get(source);
+        if (cached != null && cached.isFile())
+            return cached;
+        cacheError.printStackTrace();
+        final File tmpFile = File.createTempFile("model_", ZIP);
+        tmpFile.deleteOnExit();
+        try (InputStream in = openStream(url)) {
+            Files.copy(in, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        tmpFiles.put(source, tmpFile);
+        return tmpFile;
+    }
+
+    // not cached by the connection, i.e. closing the stream also releases the source (e.g. the jar file)
+    private static InputStream openStream(final URL url) throws IOException {
+        final URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        return connection.getInputStream();
+    }
+
+    // releases a connection whose stream hasn't been opened (only its header fields were read)
+    private static void close(final URLConnection connection) {
+        try {
+            if (connection instanceof HttpURLConnection)
+                ((HttpURLConnection) connection).disconnect();
+            else if (connection instanceof JarURLConnection)
+                ((JarURLConnection) connection).getJarFile().close();
+        } catch (IOException e) {
+            // not connected
+        }
+    }
+
+    private static boolean isValid(final String hash) throws IOException {
+        final File zip = zipFile(hash), meta = metadataFile(hash);
+        if (!zip.isFile() || !meta.isFile()) return false;
+        final Properties metadata = load(meta);
+        if (!Long.toString(zip.length()).equals(metadata.getProperty("size")) || !hash.equals(metadata.getProperty("sha256")))
+            return false;
+        if (!verified.contains(hash)) {
+            final MessageDigest digest = sha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(zip.toPath()), digest)) {
+                final byte[] buffer = new byte[1 << 16];
+                while (in.read(buffer) != -1);
+            }
+            if (!hash.equals(hex(digest.digest())))
+                return false;
+            verified.add(hash);
+        }
+        return true;
+    }
+
+    private static void touch(final String hash) throws IOException {
+        final Properties metadata = load(metadataFile(hash));
+        metadata.setProperty("lastUsed", Long.toString(System.currentTimeMillis()));
+        save(metadata, metadataFile(hash));
+    }
+
+    private static void remove(final String hash) throws IOException {
+        Files.deleteIfExists(zipFile(hash).toPath());
+        Files.deleteIfExists(metadataFile(hash).toPath());
+        verified.remove(hash);
+    }
+
+    // least recently used entries first, except for the given one
+    private static void evict(final String keep) throws IOException {
+        final File[] zips = DIR.listFiles((dir, name) -> name.endsWith(ZIP));
+        if (zips == null) return;
+        long size = 0;
+        final List<String> hashes = new ArrayList<>();
+        for (final File zip : zips) {
+            size += zip.length();
+            final String hash = zip.getName().substring(0, zip.getName().length() - ZIP.length());
+            if (!hash.equals(keep)) hashes.add(hash);
+        }
+        if (size <= MAX_SIZE) return;
+        hashes.sort(Comparator.comparingLong(hash -> lastUsed(hash)));
+        final File indexFile = new File(DIR, INDEX);
+        final Properties index = load(indexFile);
+        for (int i = 0; i < hashes.size() && size > MAX_SIZE; i++) {
+            final String hash = hashes.get(i);
+            size -= zipFile(hash).length();
+            remove(hash);
+            index.values().removeIf(hash::equals);
+        }
+        save(index, indexFile);
+    }
+
+    private static long lastUsed(final String hash) {
+        try {
+            return Long.parseLong(load(metadataFile(hash)).getProperty("lastUsed", "0"));
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static File zipFile(final String hash) {
+        return new File(DIR, hash + ZIP);
+    }
+
+    private static File metadataFile(final String hash) {
+        return new File(DIR, hash + METADATA);
+    }
+
+    private static Properties load(final File file) throws IOException {
+        final Properties properties = new Properties();
+        if (file.isFile()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+
+    // written to a temporary file first, such that a concurrent reader never sees a partial file
+    private static void save(final Properties properties, final File file) throws IOException {
+        final File tmpFile = File.createTempFile(file.getName(), ".tmp", DIR);
+        try (OutputStream out = Files.newOutputStream(tmpFile.toPath())) {
+            properties.store(out, null);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (final byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private ModelCache() {}
+
+}
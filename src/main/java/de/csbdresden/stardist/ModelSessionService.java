@@ -0,0 +1,213 @@
+package de.csbdresden.stardist;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.Disposable;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.log.LogService;
+import org.scijava.module.ModuleService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.SciJavaService;
+import org.scijava.service.Service;
+
+import net.imagej.Dataset;
+
+// keeps the CSBDeep prediction command (and thereby the network it has loaded) alive across predictions with the
+// same model: frames and tiles of one run as well as repeated runs (also from macros). predictions of a model are
+// run one after the other. a model is released if it hasn't been used for IDLE_TIMEOUT_MS, or if the heap is almost
+// full after garbage collection (checked periodically and before another model is loaded). at most MAX_SESSIONS models are kept
+@Plugin(type = Service.class)
+public class ModelSessionService extends AbstractService implements SciJavaService {
+
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long CHECK_INTERVAL_MS = 30 * 1000;
+    private static final double MEMORY_PRESSURE_FRACTION = 0.85;
+    private static final int MAX_SESSIONS = 2;
+
+    @Parameter
+    private CommandService command;
+
+    @Parameter
+    private ModuleService module;
+
+    @Parameter
+    private LogService log;
+
+    // least recently used first
+    private final Map<Object, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private ScheduledExecutorService cleaner = null;
+
+    // same parameters as GenericNetwork, returns its output
+    public synchronized Future<Dataset> predict(final Map<String, Object> paramsCNN) {
+        final Object key = modelKey(paramsCNN);
+        Session session = sessions.get(key);
+        if (session == null) {
+            if (isMemoryLow())
+                releaseIdle(0);
+            final Iterator<Session> it = sessions.values().iterator();
+            while (sessions.size() >= MAX_SESSIONS && it.hasNext()) {
+                final Session s = it.next();
+                if (s.pending == 0) {
+                    s.release();
+                    it.remove();
+                }
+            }
+            session = new Session(key);
+            sessions.put(key, session);
+            if (cleaner == null) {
+                cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "StarDist model sessions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                cleaner.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return session.submit(paramsCNN);
+    }
+
+    // releases all models that are not in use
+    public synchronized void releaseAll() {
+        releaseIdle(0);
+    }
+
+    @Override
+    public synchronized void dispose() {
+        releaseIdle(0);
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+            cleaner = null;
+        }
+    }
+
+    private synchronized void check() {
+        releaseIdle(isMemoryLow() ? 0 : IDLE_TIMEOUT_MS);
+    }
+
+    private void releaseIdle(final long idleTime) {
+        final long now = System.currentTimeMillis();
+        for (final Session session : new ArrayList<>(sessions.values())) {
+            if (session.pending == 0 && now - session.lastUsed >= idleTime) {
+                session.release();
+                sessions.remove(session.key);
+            }
+        }
+    }
+
+    // heap usage after the last garbage collection (of each heap pool), i.e. without the garbage that
+    // the current usage includes. no pressure before the first collection
+    private static boolean isMemoryLow() {
+        long usedAfterGC = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null)
+                usedAfterGC += usage.getUsed();
+        }
+        return usedAfterGC > MEMORY_PRESSURE_FRACTION * Runtime.getRuntime().maxMemory();
+    }
+
+    // a model file that is replaced (e.g. retrained under the same name) is loaded again
+    private static Object modelKey(final Map<String, Object> paramsCNN) {
+        final File modelFile = (File) paramsCNN.get("modelFile");
+        if (modelFile == null)
+            return paramsCNN.get("modelUrl");
+        return Arrays.asList(modelFile.getAbsoluteFile(), modelFile.lastModified(), modelFile.length());
+    }
+
+    // module of the prediction command for one model, only used from its own thread
+    private final class Session {
+        final Object key;
+        final ExecutorService executor;
+        CommandModule cnn = null;
+        // inputs set for the module, the same for each prediction (see submit)
+        Set<String> inputNames = null;
+        // guarded by the service
+        int pending = 0;
+        long lastUsed = System.currentTimeMillis();
+
+        Session(final Object key) {
+            this.key = key;
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "StarDist model session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Future<Dataset> submit(final Map<String, Object> paramsCNN) {
+            final Map<String, Object> params = new HashMap<>(paramsCNN);
+            pending++;
+            return executor.submit(() -> {
+                try {
+                    // the module is run without pre- and postprocessing, as command.run(GenericNetwork.class, false, ...)
+                    // did for a new module each time: services are injected by createModule, all other inputs are
+                    // set explicitly. hence a reused module behaves like a new one as long as the same inputs are set
+                    // (otherwise, inputs of an earlier prediction could remain), which is checked here
+                    if (cnn != null && !params.keySet().equals(inputNames)) {
+                        log.debug(String.format("reloading model %s for different inputs", key));
+                        disposeModule();
+                    }
+                    if (cnn == null) {
+                        log.debug(String.format("loading model %s", key));
+                        cnn = (CommandModule) module.createModule(command.getCommand(de.csbdresden.csbdeep.commands.GenericNetwork.class));
+                        inputNames = new HashSet<>(params.keySet());
+                    }
+                    final Dataset output = (Dataset) module.run(cnn, false, params).get().getOutput("output");
+                    // don't keep the input and output alive
+                    cnn.setInput("input", null);
+                    cnn.setOutput("output", null);
+                    return output;
+                } catch (Exception e) {
+                    // load the model again next time (the failed module may still hold a session)
+                    try {
+                        disposeModule();
+                    } catch (RuntimeException d) {
+                        e.addSuppressed(d);
+                    }
+                    throw e;
+                } finally {
+                    synchronized (ModelSessionService.this) {
+                        pending--;
+                        lastUsed = System.currentTimeMillis();
+                    }
+                }
+            });
+        }
+
+        void release() {
+            executor.submit(this::disposeModule);
+            executor.shutdown();
+        }
+
+        // closes the network of the module (if loaded)
+        private void disposeModule() {
+            try {
+                if (cnn != null && cnn.getDelegateObject() instanceof Disposable)
+                    ((Disposable) cnn.getDelegateObject()).dispose();
+            } finally {
+                cnn = null;
+            }
+        }
+    }
+
+}
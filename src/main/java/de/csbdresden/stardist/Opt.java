@@ -9,6 +9,7 @@ public class Opt {
     public static final String PROB_IMAGE = "Probability/Score Image";
     public static final String DIST_IMAGE = "Distance Image";
     public static final String LABEL_IMAGE = "Label Image";
+    public static final String GROUND_TRUTH_IMAGE = "Ground-truth Label Image";
     
     public static final String MODEL = "Model";
     public static final String MODEL_FILE = "Model (.zip) from File";
@@ -17,9 +18,17 @@ public class Opt {
     public static final String NORMALIZE_IMAGE = "Normalize Image";
     public static final String PERCENTILE_LOW = "Percentile low";
     public static final String PERCENTILE_HIGH = "Percentile high";
+    public static final String NORMALIZE_JOINTLY = "Normalize Timelapse Jointly";
     
     public static final String PROB_THRESH = "Probability/Score Threshold";
     public static final String NMS_THRESH = "Overlap Threshold";
+    public static final String PROB_THRESH_MIN = "Probability/Score Threshold (min)";
+    public static final String PROB_THRESH_MAX = "Probability/Score Threshold (max)";
+    public static final String PROB_THRESH_STEP = "Probability/Score Threshold (step)";
+    public static final String NMS_THRESH_MIN = "Overlap Threshold (min)";
+    public static final String NMS_THRESH_MAX = "Overlap Threshold (max)";
+    public static final String NMS_THRESH_STEP = "Overlap Threshold (step)";
+    public static final String IOU_THRESH = "IoU Threshold for Matching";
     
     public static final String OUTPUT_TYPE = "Output Type";
     public static final String OUTPUT_ROI_MANAGER = "ROI Manager";
@@ -28,11 +37,27 @@ public class Opt {
     public static final String OUTPUT_POLYGONS = "Polygons";
     
     public static final String NUM_TILES = "Number of Tiles";
+    public static final String NUM_TILES_AUTO = "Automatic Number of Tiles";
+    public static final String STREAM_TILES = "Stream Tiles";
     public static final String EXCLUDE_BNDRY = "Boundary Exclusion";
+    public static final String MAXIMA_RADIUS = "Local Maxima Radius";
+    public static final String CELL_SIZE = "Candidate Grid Cell Size";
+    public static final String CELL_BUDGET = "Candidates per Grid Cell";
+    public static final String NMS_ENGINE = "NMS Engine";
+    public static final String NMS_EXACT = "Exact";
+    public static final String NMS_RASTERIZED = "Rasterized";
+    public static final String POLYGON_INTERSECTION = "Polygon Intersection";
+    public static final String INTERSECTION_STAR_CONVEX = "Star-convex";
+    public static final String INTERSECTION_CLIPPER = "Clipper";
+    public static final String DIST_STORAGE = "Distance Storage";
+    public static final String DIST_FLOAT32 = "32-bit float";
+    public static final String DIST_FLOAT16 = "16-bit float";
+    public static final String DIST_INT16 = "16-bit integer";
     public static final String ROI_POSITION = "ROI Position";
     public static final String ROI_POSITION_AUTO = "Automatic";
     public static final String ROI_POSITION_STACK = "Stack";
     public static final String ROI_POSITION_HYPERSTACK = "Hyperstack";
+    public static final String NUM_THREADS = "Number of Threads";
     public static final String VERBOSE = "Verbose";
     public static final String CSBDEEP_PROGRESS_WINDOW = "Show CNN Progress";
     public static final String SHOW_PROB_DIST = "Show CNN Output";
@@ -47,12 +72,29 @@ public class Opt {
         DEFAULTS.put(NORMALIZE_IMAGE, true);
         DEFAULTS.put(PERCENTILE_LOW, 1.0);
         DEFAULTS.put(PERCENTILE_HIGH, 99.8);
+        DEFAULTS.put(NORMALIZE_JOINTLY, false);
         DEFAULTS.put(PROB_THRESH, 0.5);
         DEFAULTS.put(NMS_THRESH, 0.4);
+        DEFAULTS.put(PROB_THRESH_MIN, 0.3);
+        DEFAULTS.put(PROB_THRESH_MAX, 0.8);
+        DEFAULTS.put(PROB_THRESH_STEP, 0.05);
+        DEFAULTS.put(NMS_THRESH_MIN, 0.1);
+        DEFAULTS.put(NMS_THRESH_MAX, 0.6);
+        DEFAULTS.put(NMS_THRESH_STEP, 0.1);
+        DEFAULTS.put(IOU_THRESH, 0.5);
         DEFAULTS.put(OUTPUT_TYPE, OUTPUT_BOTH);
         DEFAULTS.put(NUM_TILES, 1);
+        DEFAULTS.put(NUM_TILES_AUTO, false);
+        DEFAULTS.put(STREAM_TILES, false);
         DEFAULTS.put(EXCLUDE_BNDRY, 2);
+        DEFAULTS.put(MAXIMA_RADIUS, 0);
+        DEFAULTS.put(CELL_SIZE, 16);
+        DEFAULTS.put(CELL_BUDGET, 0);
+        DEFAULTS.put(NMS_ENGINE, NMS_EXACT);
+        DEFAULTS.put(POLYGON_INTERSECTION, INTERSECTION_STAR_CONVEX);
+        DEFAULTS.put(DIST_STORAGE, DIST_FLOAT32);
         DEFAULTS.put(ROI_POSITION, ROI_POSITION_AUTO);
+        DEFAULTS.put(NUM_THREADS, 0);
         DEFAULTS.put(VERBOSE, false);
         DEFAULTS.put(CSBDEEP_PROGRESS_WINDOW, false);
         DEFAULTS.put(SHOW_PROB_DIST, false);
@@ -0,0 +1,62 @@
+package de.csbdresden.stardist;
+
+import java.util.List;
+
+import net.imagej.Dataset;
+import net.imglib2.util.Pair;
+
+// intermediate results of the StarDist2D preview: the CNN prediction (prob and dist) and the candidates extracted from it.
+// each one is kept as long as the parameters it was computed from (its key) don't change. there is at most one of each,
+// and a prediction is only kept if it doesn't take more than a fraction of the maximum heap size
+public class PreviewCache {
+
+    private static final double MAX_HEAP_FRACTION = 0.25;
+
+    private List<Object> predictionKey = null;
+    private Pair<Dataset, Dataset> prediction = null;
+    private List<Object> candidatesKey = null;
+    private Candidates candidates = null;
+    private double candidatesThresh = Double.NaN;
+
+    public synchronized Pair<Dataset, Dataset> getPrediction(final List<Object> key) {
+        return key.equals(predictionKey) ? prediction : null;
+    }
+
+    // replaces the cached prediction and drops the candidates (which depend on it)
+    public synchronized void putPrediction(final List<Object> key, final Pair<Dataset, Dataset> prediction) {
+        clear();
+        final long bytes = 4 * (numElements(prediction.getA()) + numElements(prediction.getB()));
+        if (bytes > MAX_HEAP_FRACTION * Runtime.getRuntime().maxMemory())
+            return;
+        this.predictionKey = key;
+        this.prediction = prediction;
+    }
+
+    // candidates extracted with a threshold <= probThresh, since they contain all candidates above probThresh
+    public synchronized Candidates getCandidates(final List<Object> key, final double probThresh) {
+        return key.equals(candidatesKey) && candidatesThresh <= probThresh ? candidates : null;
+    }
+
+    // only if the prediction is cached too, since the candidates refer to its data
+    public synchronized void putCandidates(final List<Object> key, final double probThresh, final Candidates candidates) {
+        if (prediction == null) return;
+        this.candidatesKey = key;
+        this.candidatesThresh = probThresh;
+        this.candidates = candidates;
+    }
+
+    public synchronized void clear() {
+        predictionKey = candidatesKey = null;
+        prediction = null;
+        candidates = null;
+        candidatesThresh = Double.NaN;
+    }
+
+    private static long numElements(final Dataset ds) {
+        long n = 1;
+        for (int d = 0; d < ds.numDimensions(); d++)
+            n *= ds.dimension(d);
+        return n;
+    }
+
+}
@@ -0,0 +1,200 @@
+package de.csbdresden.stardist;
+
+// intersection area of two star-convex polygons with n vertices each (layout as in Candidates: vertex x coordinates
+// at [0,n), y coordinates at [n,2*n), bbox xmin,xmax,ymin,ymax at [2*n,2*n+4)), without any allocations.
+// both polygons are decomposed into the triangles (c, vertex k, vertex k+1) around the same center c, hence the
+// intersection area is the sum of the intersection areas of all pairs of triangles. the orientation of each triangle
+// is used as its sign, which keeps the result exact for any center c. if c lies inside the kernel of both polygons
+// (typically true for the origin of one of two strongly overlapping candidates), the triangles of each polygon
+// are ordered by direction and only pairs of triangles with overlapping directions need to be intersected.
+// instances hold scratch buffers and must not be shared between threads.
+public class StarConvexIntersection {
+
+    // pseudo angle (see pseudoAngle) of a full turn and tolerance for round-off
+    private static final double FULL_ANGLE = 4;
+    private static final double ANGLE_EPS = 1e-9;
+
+    private final int n;
+    private final Fan first, second;
+    // clipping buffers (a triangle clipped by three half-planes has at most 6 vertices)
+    private final double[] px = new double[8], py = new double[8];
+    private final double[] qx = new double[8], qy = new double[8];
+
+    public StarConvexIntersection(final int n) {
+        this.n = n;
+        this.first = new Fan(n);
+        this.second = new Fan(n);
+    }
+
+    public double area(final long[] a, final long ax, final long ay, final long[] b, final long bx, final long by) {
+        final long xmin = Math.max(a[2*n  ], b[2*n  ]), xmax = Math.min(a[2*n+1], b[2*n+1]);
+        final long ymin = Math.max(a[2*n+2], b[2*n+2]), ymax = Math.min(a[2*n+3], b[2*n+3]);
+        if (xmin > xmax || ymin > ymax) return 0;
+
+        // try the origin of a as center first, then the origin of b
+        if (first.of(a, ax, ay) && second.of(b, ax, ay))
+            return orderedArea(first, second);
+        if (first.of(a, bx, by) & second.of(b, bx, by))
+            return orderedArea(first, second);
+        // general case: all pairs of triangles whose directions and bboxes overlap
+        return generalArea(first, second, xmin - bx, xmax - bx, ymin - by, ymax - by);
+    }
+
+    // both fans go around the center exactly once with increasing direction, hence can be merged in linear time
+    private double orderedArea(final Fan f, final Fan g) {
+        // directions of the triangle boundaries, unwrapped to be increasing. the triangles of g start at or
+        // before the first direction of f and are repeated to cover two full turns, hence all directions of f
+        final double fStart = f.angle[0];
+        final double gStart = fStart - wrap(fStart - g.angle[0]);
+        double sum = 0;
+        int l = 0;
+        double gFrom = gStart, gTo = gStart + g.length[0];
+        double fFrom = fStart;
+        for (int k = 0; k < n; k++) {
+            final double fTo = fFrom + f.length[k];
+            // skip triangles of g that end before triangle k of f starts
+            while (gTo < fFrom - ANGLE_EPS) {
+                gFrom = gTo;
+                l++;
+                gTo = gFrom + g.length[l % n];
+            }
+            // intersect with all triangles of g that start before triangle k of f ends
+            double hFrom = gFrom, hTo = gTo;
+            for (int h = l; hFrom <= fTo + ANGLE_EPS && h < l + n; h++) {
+                sum += intersectionArea(f, k, g, h % n);
+                hFrom = hTo;
+                hTo = hFrom + g.length[(h+1) % n];
+            }
+            fFrom = fTo;
+        }
+        return sum;
+    }
+
+    private double generalArea(final Fan f, final Fan g, final double xmin, final double xmax, final double ymin, final double ymax) {
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            if (f.sign[k] == 0) continue;
+            final int k1 = k+1 == n ? 0 : k+1;
+            final double fxmin = Math.min(0, Math.min(f.x[k], f.x[k1])), fxmax = Math.max(0, Math.max(f.x[k], f.x[k1]));
+            final double fymin = Math.min(0, Math.min(f.y[k], f.y[k1])), fymax = Math.max(0, Math.max(f.y[k], f.y[k1]));
+            if (fxmin > xmax || fxmax < xmin || fymin > ymax || fymax < ymin) continue;
+            for (int l = 0; l < n; l++) {
+                if (g.sign[l] == 0) continue;
+                if (!arcsIntersect(f.start(k), f.length[k], g.start(l), g.length[l])) continue;
+                final int l1 = l+1 == n ? 0 : l+1;
+                if (Math.min(0, Math.min(g.x[l], g.x[l1])) > fxmax || Math.max(0, Math.max(g.x[l], g.x[l1])) < fxmin ||
+                    Math.min(0, Math.min(g.y[l], g.y[l1])) > fymax || Math.max(0, Math.max(g.y[l], g.y[l1])) < fymin) continue;
+                sum += intersectionArea(f, k, g, l);
+            }
+        }
+        return sum;
+    }
+
+    // signed intersection area of triangle k of f and triangle l of g
+    private double intersectionArea(final Fan f, final int k, final Fan g, final int l) {
+        if (f.sign[k] == 0 || g.sign[l] == 0) return 0;
+        final int k1 = k+1 == n ? 0 : k+1, l1 = l+1 == n ? 0 : l+1;
+        return f.sign[k] * g.sign[l] * triangleIntersectionArea(f.x[k], f.y[k], f.x[k1], f.y[k1], g.x[l], g.y[l], g.x[l1], g.y[l1], g.sign[l]);
+    }
+
+    // area of the intersection of triangles (0,0),(x1,y1),(x2,y2) and (0,0),(u1,v1),(u2,v2) with orientation sign,
+    // by clipping the first triangle with the three edges of the second one (Sutherland-Hodgman)
+    private double triangleIntersectionArea(final double x1, final double y1, final double x2, final double y2,
+                                            final double u1, final double v1, final double u2, final double v2, final int sign) {
+        px[0] = 0;  py[0] = 0;
+        px[1] = x1; py[1] = y1;
+        px[2] = x2; py[2] = y2;
+        int m = 3;
+        m = clip(px, py, m, qx, qy, 0, 0, u1, v1, sign);
+        if (m == 0) return 0;
+        m = clip(qx, qy, m, px, py, u1, v1, u2, v2, sign);
+        if (m == 0) return 0;
+        m = clip(px, py, m, qx, qy, u2, v2, 0, 0, sign);
+        if (m < 3) return 0;
+        double area = 0;
+        for (int i = 0, j = m-1; i < m; j = i++)
+            area += qx[j] * qy[i] - qx[i] * qy[j];
+        return 0.5 * Math.abs(area);
+    }
+
+    // clips polygon (xs,ys) of length m to the half-plane left (sign > 0) or right (sign < 0) of the line (ax,ay)->(bx,by)
+    private static int clip(final double[] xs, final double[] ys, final int m, final double[] xo, final double[] yo,
+                            final double ax, final double ay, final double bx, final double by, final int sign) {
+        final double ex = bx - ax, ey = by - ay;
+        int k = 0;
+        double xp = xs[m-1], yp = ys[m-1];
+        double dp = sign * (ex * (yp - ay) - ey * (xp - ax));
+        for (int i = 0; i < m; i++) {
+            final double xc = xs[i], yc = ys[i];
+            final double dc = sign * (ex * (yc - ay) - ey * (xc - ax));
+            if (dc >= 0) {
+                if (dp < 0) {
+                    final double t = dp / (dp - dc);
+                    xo[k] = xp + t * (xc - xp); yo[k] = yp + t * (yc - yp); k++;
+                }
+                xo[k] = xc; yo[k] = yc; k++;
+            } else if (dp > 0) {
+                final double t = dp / (dp - dc);
+                xo[k] = xp + t * (xc - xp); yo[k] = yp + t * (yc - yp); k++;
+            }
+            xp = xc; yp = yc; dp = dc;
+        }
+        return k;
+    }
+
+    // monotone function of the angle of (x,y), in [0,4)
+    private static double pseudoAngle(final double x, final double y) {
+        final double p = x / (Math.abs(x) + Math.abs(y));
+        return y < 0 ? 3 + p : 1 - p;
+    }
+
+    // pseudo angle difference mapped to [0,4)
+    private static double wrap(final double d) {
+        return d < 0 ? d + FULL_ANGLE : d >= FULL_ANGLE ? d - FULL_ANGLE : d;
+    }
+
+    // overlap test of the directions [start1,start1+length1] and [start2,start2+length2], with some tolerance for round-off
+    private static boolean arcsIntersect(final double start1, final double length1, final double start2, final double length2) {
+        final double d = wrap(start2 - start1);
+        return d <= length1 + ANGLE_EPS || FULL_ANGLE - d <= length2 + ANGLE_EPS;
+    }
+
+    // triangles (c, vertex k, vertex k+1) of a polygon, with vertex coordinates relative to the center c.
+    // triangle k covers the directions from angle[k] to angle[k+1] (reversed if its orientation is negative)
+    private static final class Fan {
+        final int n;
+        final double[] x, y, angle, length;
+        final int[] sign;
+
+        Fan(final int n) {
+            this.n = n;
+            x = new double[n]; y = new double[n];
+            angle = new double[n]; length = new double[n];
+            sign = new int[n];
+        }
+
+        double start(final int k) {
+            return sign[k] > 0 ? angle[k] : angle[k+1 == n ? 0 : k+1];
+        }
+
+        // returns true if all triangles are positively oriented and go around the center exactly once
+        boolean of(final long[] p, final long cx, final long cy) {
+            for (int k = 0; k < n; k++) {
+                x[k] = p[k] - cx;
+                y[k] = p[n+k] - cy;
+                angle[k] = pseudoAngle(x[k], y[k]);
+            }
+            boolean ordered = true;
+            double turn = 0;
+            for (int k = 0; k < n; k++) {
+                final int k1 = k+1 == n ? 0 : k+1;
+                sign[k] = (int) Math.signum(x[k] * y[k1] - y[k] * x[k1]);
+                length[k] = sign[k] == 0 ? 0 : sign[k] > 0 ? wrap(angle[k1] - angle[k]) : wrap(angle[k] - angle[k1]);
+                ordered &= sign[k] > 0;
+                turn += length[k];
+            }
+            return ordered && Math.abs(turn - FULL_ANGLE) < 1e-6;
+        }
+    }
+
+}
@@ -7,20 +7,31 @@ import static de.csbdresden.stardist.StarDist2DModel.MODEL_HE_HEAVY_AUGMENTATION
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import org.scijava.ItemIO;
 import org.scijava.ItemVisibility;
 import org.scijava.command.Command;
 import org.scijava.command.CommandModule;
+import org.scijava.command.Previewable;
+import org.scijava.convert.ConvertService;
 import org.scijava.menu.MenuConstants;
 import org.scijava.plugin.Menu;
 import org.scijava.plugin.Parameter;
@@ -32,13 +43,20 @@ import org.scijava.widget.NumberWidget;
 import de.csbdresden.CommandFromMacro;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.gui.Overlay;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.DiskCachedCellImgFactory;
+import net.imglib2.cache.img.DiskCachedCellImgOptions;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
@@ -49,7 +67,7 @@ import net.imglib2.view.Views;
         @Menu(label = "StarDist"),
         @Menu(label = "StarDist 2D", weight = 1)
 })
-public class StarDist2D extends StarDist2DBase implements Command {
+public class StarDist2D extends StarDist2DBase implements Command, Previewable {
 
     @Parameter(label="", visibility=ItemVisibility.MESSAGE, initializer="checkForCSBDeep")
     private final String msgTitle = "<html>" +
@@ -86,6 +104,10 @@ public class StarDist2D extends StarDist2DBase implements Command {
     @Parameter(label=Opt.PERCENTILE_HIGH, stepSize="0.1", min="0", max="100", style=NumberWidget.SLIDER_STYLE, callback="percentileTopChanged")
     private double percentileTop = (double) Opt.getDefault(Opt.PERCENTILE_HIGH);
 
+    // timelapse: percentiles of all frames instead of each frame by itself
+    @Parameter(label=Opt.NORMALIZE_JOINTLY)
+    private boolean normalizeJointly = (boolean) Opt.getDefault(Opt.NORMALIZE_JOINTLY);
+
     @Parameter(label=Opt.PROB_IMAGE, type=ItemIO.OUTPUT)
     private Dataset prob;
 
@@ -120,12 +142,41 @@ public class StarDist2D extends StarDist2DBase implements Command {
     @Parameter(label=Opt.MODEL_URL, required=false)
     protected String modelUrl;
 
+    // ignored if autoTiles is set, the tile count is then chosen by planTiles (for each run)
     @Parameter(label=Opt.NUM_TILES, min="1", stepSize="1")
     private int nTiles = (int) Opt.getDefault(Opt.NUM_TILES);
 
+    @Parameter(label=Opt.NUM_TILES_AUTO)
+    private boolean autoTiles = (boolean) Opt.getDefault(Opt.NUM_TILES_AUTO);
+
+    // tiles are predicted one after the other and only their candidates are kept (see predictTiled). the input is then
+    // normalized as a whole by Utils.percentiles instead of by the CNN prediction, i.e. results can differ slightly
+    @Parameter(label=Opt.STREAM_TILES)
+    private boolean streamTiles = (boolean) Opt.getDefault(Opt.STREAM_TILES);
+
     @Parameter(label=Opt.EXCLUDE_BNDRY, min="0", stepSize="1")
     private int excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+
+    // optional candidate prefilter (0 = disabled)
+    @Parameter(label=Opt.MAXIMA_RADIUS, min="0", stepSize="1")
+    private int maximaRadius = (int) Opt.getDefault(Opt.MAXIMA_RADIUS);
+
+    @Parameter(label=Opt.CELL_SIZE, min="1", stepSize="1")
+    private int cellSize = (int) Opt.getDefault(Opt.CELL_SIZE);
+
+    @Parameter(label=Opt.CELL_BUDGET, min="0", stepSize="1")
+    private int cellBudget = (int) Opt.getDefault(Opt.CELL_BUDGET);
+
+    @Parameter(label=Opt.NMS_ENGINE, choices={Opt.NMS_EXACT, Opt.NMS_RASTERIZED}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String nmsEngine = (String) Opt.getDefault(Opt.NMS_ENGINE);
+
+    @Parameter(label=Opt.POLYGON_INTERSECTION, choices={Opt.INTERSECTION_STAR_CONVEX, Opt.INTERSECTION_CLIPPER}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String intersection = (String) Opt.getDefault(Opt.POLYGON_INTERSECTION);
     
+    // 16 bit: candidates keep their (rounded) ray lengths themselves instead of referencing the distance image
+    @Parameter(label=Opt.DIST_STORAGE, choices={Opt.DIST_FLOAT32, Opt.DIST_FLOAT16, Opt.DIST_INT16}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String distStorage = (String) Opt.getDefault(Opt.DIST_STORAGE);
+
     @Parameter(label=Opt.ROI_POSITION, choices={Opt.ROI_POSITION_AUTO, Opt.ROI_POSITION_STACK, Opt.ROI_POSITION_HYPERSTACK}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
     private String roiPosition = (String) Opt.getDefault(Opt.ROI_POSITION);
     private String roiPositionActive = null;
@@ -147,6 +198,40 @@ public class StarDist2D extends StarDist2DBase implements Command {
     @Parameter(label=Opt.RESTORE_DEFAULTS, callback="restoreDefaults")
     private Button restoreDefaults;
 
+    @Parameter
+    private ConvertService convert;
+
+    @Parameter
+    private ModelSessionService modelSession;
+
+    // ---------
+
+    // preview: computed in the background (latest request only), results are reused by subsequent previews and run
+    private final PreviewCache previewCache = new PreviewCache();
+    private ExecutorService previewExecutor = null;
+    private Future<?> previewTask = null;
+    private ImagePlus previewImage = null;
+    private Overlay previewOverlayBefore = null;
+
+    // a warning is shown if the prediction of a single image (prob + dist) would take more than this fraction of the maximum
+    // heap size (see run). label images of this size are kept in cells that can be written to disk
+    private static final double LARGE_INPUT_HEAP_FRACTION = 0.5;
+    private static final int LABEL_CELL_SIZE = 1024;
+
+    // number of frames that can wait in between two stages of the timelapse pipeline (see processFrames)
+    private static final int PIPELINE_DEPTH = 2;
+    // frames that are predicted at once are limited by the free heap (see framesPerBatch)
+    private static final double BATCH_HEAP_FRACTION = 0.25;
+    private static final int MAX_BATCH_SIZE = 16;
+
+    // automatic number of tiles (see planTiles): the estimated memory must not exceed this fraction of the free heap
+    private static final double AUTO_TILES_HEAP_FRACTION = 0.5;
+    private static final int MAX_AUTO_TILES = 1024;
+    // rays of models that aren't built-in (only known after loading the model)
+    private static final int NUM_RAYS_ESTIMATE = 32;
+    // fraction of pixels that are candidates (above the probability threshold)
+    private static final double CANDIDATE_FRACTION_ESTIMATE = 0.05;
+
     // ---------
 
     private void restoreDefaults() {
@@ -154,11 +239,20 @@ public class StarDist2D extends StarDist2DBase implements Command {
         normalizeInput = (boolean) Opt.getDefault(Opt.NORMALIZE_IMAGE);
         percentileBottom = (double) Opt.getDefault(Opt.PERCENTILE_LOW);
         percentileTop = (double) Opt.getDefault(Opt.PERCENTILE_HIGH);
+        normalizeJointly = (boolean) Opt.getDefault(Opt.NORMALIZE_JOINTLY);
         probThresh = (double) Opt.getDefault(Opt.PROB_THRESH);
         nmsThresh = (double) Opt.getDefault(Opt.NMS_THRESH);
         outputType = (String) Opt.getDefault(Opt.OUTPUT_TYPE);
         nTiles = (int) Opt.getDefault(Opt.NUM_TILES);
+        autoTiles = (boolean) Opt.getDefault(Opt.NUM_TILES_AUTO);
+        streamTiles = (boolean) Opt.getDefault(Opt.STREAM_TILES);
         excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+        maximaRadius = (int) Opt.getDefault(Opt.MAXIMA_RADIUS);
+        cellSize = (int) Opt.getDefault(Opt.CELL_SIZE);
+        cellBudget = (int) Opt.getDefault(Opt.CELL_BUDGET);
+        nmsEngine = (String) Opt.getDefault(Opt.NMS_ENGINE);
+        intersection = (String) Opt.getDefault(Opt.POLYGON_INTERSECTION);
+        distStorage = (String) Opt.getDefault(Opt.DIST_STORAGE);
         roiPosition = (String) Opt.getDefault(Opt.ROI_POSITION);
         verbose = (boolean) Opt.getDefault(Opt.VERBOSE);
         showCsbdeepProgress = (boolean) Opt.getDefault(Opt.CSBDEEP_PROGRESS_WINDOW);
@@ -216,45 +310,26 @@ public class StarDist2D extends StarDist2DBase implements Command {
         else
             roiPositionActive = roiPosition;
 
-        File tmpModelFile = null;
+        stopPreview();
+
         try {
+            final Settings settings = new Settings(this);
             final HashMap<String, Object> paramsCNN = new HashMap<>();
-            paramsCNN.put("input", input);
-            paramsCNN.put("normalizeInput", normalizeInput);
-            paramsCNN.put("percentileBottom", percentileBottom);
-            paramsCNN.put("percentileTop", percentileTop);
-            paramsCNN.put("clip", false);
-            paramsCNN.put("nTiles", nTiles);
-            paramsCNN.put("blockMultiple", 64);
-            paramsCNN.put("overlap", 64);
-            paramsCNN.put("batchSize", 1);
-            paramsCNN.put("showProgressDialog", showCsbdeepProgress);
-
-            switch (modelChoice) {
-            case Opt.MODEL_FILE:
-                paramsCNN.put("modelFile", modelFile);
-                break;
-            case Opt.MODEL_URL:
-                paramsCNN.put("modelUrl", modelUrl);
-                break;
-            default:
-                final StarDist2DModel pretrainedModel = MODELS.get(modelChoice);
-                if (pretrainedModel.canGetFile()) {
-                    final File file = pretrainedModel.getFile();
-                    paramsCNN.put("modelFile", file);
-                    if (pretrainedModel.isTempFile())
-                        tmpModelFile = file;
-                } else {
-                    paramsCNN.put("modelUrl", pretrainedModel.url);
-                }
-                paramsCNN.put("blockMultiple", pretrainedModel.sizeDivBy);
-                paramsCNN.put("overlap", pretrainedModel.tileOverlap);
-            }
+            setupCNN(settings, paramsCNN, showCsbdeepProgress);
+            if (input.getFrames() == 1 && (int) paramsCNN.get("nTiles") < 2 && predictionBytes() > LARGE_INPUT_HEAP_FRACTION * Runtime.getRuntime().maxMemory())
+                log.warn(String.format("The prediction of the input image (about %d MB) might not fit into memory, consider increasing \"%s\" or enabling \"%s\".",
+                        predictionBytes() >> 20, Opt.NUM_TILES, Opt.NUM_TILES_AUTO));
 
             final HashMap<String, Object> paramsNMS = new HashMap<>();
             paramsNMS.put("probThresh", probThresh);
             paramsNMS.put("nmsThresh", nmsThresh);
             paramsNMS.put("excludeBoundary", excludeBoundary);
+            paramsNMS.put("maximaRadius", maximaRadius);
+            paramsNMS.put("cellSize", cellSize);
+            paramsNMS.put("cellBudget", cellBudget);
+            paramsNMS.put("nmsEngine", nmsEngine);
+            paramsNMS.put("intersection", intersection);
+            paramsNMS.put("distStorage", distStorage);
             paramsNMS.put("roiPosition", roiPositionActive);
             paramsNMS.put("verbose", verbose);
 
@@ -265,47 +340,34 @@ public class StarDist2D extends StarDist2DBase implements Command {
             // TODO: option to normalize image/timelapse channel by channel or all channels jointly
 
             if (true && isTimelapse) {
-                // TODO: option to normalize timelapse frame by frame (currently) or jointly
-                final ImgPlus<? extends RealType<?>> inputImgPlus = input.getImgPlus();
-                final long numFrames = input.getFrames();
-                final int inputTimeDim = IntStream.range(0, inputAxes.size()).filter(d -> input.axis(d).type() == Axes.TIME).findFirst().getAsInt();
-                for (int t = 0; t < numFrames; t++) {
-                    final Dataset inputFrameDS = Utils.raiToDataset(dataset, "Input Frame",
-                            Views.hyperSlice(inputImgPlus, inputTimeDim, t),
-                            inputAxes.stream().filter(axis -> axis != Axes.TIME));
-                    paramsCNN.put("input", inputFrameDS);
-                    final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                    final Dataset prediction = (Dataset) futureCNN.get().getOutput("output");
-
-                    final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
-                    final Dataset probDS = probAndDist.getA();
-                    final Dataset distDS = probAndDist.getB();
-                    paramsNMS.put("prob", probDS);
-                    paramsNMS.put("dist", distDS);
-                    paramsNMS.put("outputType", Opt.OUTPUT_POLYGONS);
-                    if (showProbAndDist) {
-                        // TODO: not implemented/supported
-                        if (t==0) log.error(String.format("\"%s\" not implemented/supported for timelapse data.", Opt.SHOW_PROB_DIST));
-                    }
-
-                    final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsNMS);
-                    final Candidates polygons = (Candidates) futureNMS.get().getOutput("polygons");
-                    export(outputType, polygons, 1+t, numFrames, roiPositionActive);
-
-                    status.showProgress(1+t, (int)numFrames);
+                if (showProbAndDist) {
+                    // TODO: not implemented/supported
+                    log.error(String.format("\"%s\" not implemented/supported for timelapse data.", Opt.SHOW_PROB_DIST));
                 }
+                processFrames(paramsCNN, paramsNMS, inputAxes);
                 label = labelImageToDataset(outputType);                
                 // if (roiManager != null) OverlayCommands.listRois(roiManager.getRoisAsArray());
 
+            } else if (settings.isStreamed() && (int) paramsCNN.get("nTiles") > 1) {
+                // only the candidates of each tile are kept, not the full prediction (never cached by the preview)
+                final Candidates polygons = predictTiled(paramsCNN);
+                nms(polygons, nmsThresh, nmsEngine, intersection);
+                if (verbose)
+                    log.info(String.format("%d polygon candidates, %d remain after non-maximum suppression", polygons.getSortedIndices().length, polygons.getWinnerIndices().length));
+                export(outputType, polygons, 0, 0, roiPositionActive);
+                label = labelImageToDataset(outputType);
+
             } else {
                 // note: the code below supports timelapse data too. differences to above:
                 //       - joint normalization of all frames
                 //       - requires more memory to store intermediate results (prob and dist) of all frames
                 //       - allows showing prob and dist easily
-                final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                final Dataset prediction = (Dataset) futureCNN.get().getOutput("output");
-
-                final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
+                // reuse the prediction of the preview if available
+                Pair<Dataset, Dataset> probAndDist = previewCache.getPrediction(settings.predictionKey());
+                if (probAndDist == null) {
+                    final Dataset prediction = modelSession.predict(paramsCNN).get();
+                    probAndDist = splitPrediction(prediction);
+                }
                 final Dataset probDS = probAndDist.getA();
                 final Dataset distDS = probAndDist.getB();
                 paramsNMS.put("prob", probDS);
@@ -331,20 +393,430 @@ public class StarDist2D extends StarDist2DBase implements Command {
         } catch (InterruptedException | ExecutionException | IOException e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (tmpModelFile != null && tmpModelFile.exists())
-                    tmpModelFile.delete();
-            } catch (Exception e) {
-                e.printStackTrace();
+            previewCache.clear();
+        }
+    }
+
+    // frames are passed through three stages that run concurrently: CNN prediction (this thread), nms and export.
+    // the queues between the stages are bounded, i.e. at most PIPELINE_DEPTH predictions and candidates are kept
+    // in memory at any time. each stage handles the frames in order, hence they are exported in order
+    private void processFrames(final HashMap<String, Object> paramsCNN, final HashMap<String, Object> paramsNMS, final LinkedHashSet<AxisType> inputAxes)
+            throws InterruptedException, ExecutionException {
+        final ImgPlus<? extends RealType<?>> inputImgPlus = input.getImgPlus();
+        final long numFrames = input.getFrames();
+        final int inputTimeDim = IntStream.range(0, inputAxes.size()).filter(d -> input.axis(d).type() == Axes.TIME).findFirst().getAsInt();
+
+        final BlockingQueue<Frame> predictions = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        final BlockingQueue<Frame> candidates = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+        final ExecutorService pipeline = Executors.newFixedThreadPool(2, r -> {
+            final Thread thread = new Thread(r, "StarDist2D pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final Future<?> exportStage = pipeline.submit(() -> {
+                for (Frame frame = candidates.take(); frame != Frame.END; frame = candidates.take()) {
+                    export(outputType, frame.polygons, 1+frame.t, numFrames, roiPositionActive);
+                    status.showProgress(1+frame.t, (int)numFrames);
+                }
+                return null;
+            });
+            final Future<?> nmsStage = pipeline.submit(() -> {
+                for (Frame frame = predictions.take(); frame != Frame.END; frame = predictions.take()) {
+                    final HashMap<String, Object> paramsFrame = new HashMap<>(paramsNMS);
+                    paramsFrame.put("prob", frame.probAndDist.getA());
+                    paramsFrame.put("dist", frame.probAndDist.getB());
+                    paramsFrame.put("outputType", Opt.OUTPUT_POLYGONS);
+                    final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsFrame);
+                    final Candidates polygons = (Candidates) futureNMS.get().getOutput("polygons");
+                    put(candidates, new Frame(frame.t, null, polygons), exportStage);
+                }
+                put(candidates, Frame.END, exportStage);
+                return null;
+            });
+
+            // joint normalization: the percentiles of the whole timelapse are computed upfront (without keeping any frame),
+            // then each frame is normalized with them as it is predicted
+            final double[] jointRange = normalizeInput && normalizeJointly ? Utils.percentiles(inputImgPlus, percentileBottom, percentileTop) : null;
+            if (verbose && jointRange != null)
+                log.info(String.format("normalizing all frames with percentiles [%g, %g]", jointRange[0], jointRange[1]));
+
+            // several frames are predicted at once if there is enough memory, unless each frame is normalized by itself: the
+            // CNN prediction would normalize all frames of a batch jointly, hence these frames are still predicted one by one
+            // (and normalized by the CNN prediction as before). joint normalization is done here for all frames
+            final boolean perFrameNormalization = normalizeInput && jointRange == null;
+            final int batchSize = perFrameNormalization ? 1 : framesPerBatch();
+            if (verbose && batchSize > 1)
+                log.info(String.format("predicting %d frames at once", batchSize));
+            for (int t0 = 0; t0 < numFrames; t0 += batchSize) {
+                final int t1 = (int) Math.min(numFrames, t0 + batchSize);
+                if (t1 - t0 == 1) {
+                    final RandomAccessibleInterval<? extends RealType<?>> frame = Views.hyperSlice(inputImgPlus, inputTimeDim, t0);
+                    final HashMap<String, Object> paramsFrame = new HashMap<>(paramsCNN);
+                    if (jointRange != null) {
+                        // copied, since the normalized frame is a lazy view
+                        paramsFrame.put("input", Utils.raiToDataset(dataset, "Input Frame", normalized(frame, jointRange), inputAxes.stream().filter(axis -> axis != Axes.TIME)));
+                        paramsFrame.put("normalizeInput", false);
+                    } else {
+                        paramsFrame.put("input", Utils.wrapToDataset(dataset, "Input Frame", frame, inputAxes.stream().filter(axis -> axis != Axes.TIME)));
+                    }
+                    final Dataset prediction = modelSession.predict(paramsFrame).get();
+                    put(predictions, new Frame(t0, splitPrediction(prediction), null), nmsStage);
+                    continue;
+                }
+                final List<RandomAccessibleInterval> frames = new ArrayList<>(t1 - t0);
+                for (int t = t0; t < t1; t++) {
+                    final RandomAccessibleInterval<? extends RealType<?>> frame = Views.hyperSlice(inputImgPlus, inputTimeDim, t);
+                    frames.add(jointRange != null ? normalized(frame, jointRange) : frame);
+                }
+                // frames are stacked along the last dimension
+                final HashMap<String, Object> paramsBatch = new HashMap<>(paramsCNN);
+                paramsBatch.put("input", Utils.raiToDataset(dataset, "Input Frames", Views.stack((List) frames),
+                        Stream.concat(inputAxes.stream().filter(axis -> axis != Axes.TIME), Stream.of(Axes.TIME))));
+                paramsBatch.put("normalizeInput", false);
+                paramsBatch.put("batchSize", t1 - t0);
+                final Dataset prediction = modelSession.predict(paramsBatch).get();
+                for (int t = t0; t < t1; t++)
+                    put(predictions, new Frame(t, frameOf(prediction, t - t0), null), nmsStage);
+            }
+            put(predictions, Frame.END, nmsStage);
+            nmsStage.get();
+            exportStage.get();
+        } finally {
+            pipeline.shutdownNow();
+        }
+    }
+
+    // frames that are predicted at once, such that their input and prediction take at most BATCH_HEAP_FRACTION of the free heap
+    private int framesPerBatch() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        final long bytesPerFrame = 4 * input.getWidth() * input.getHeight() * (input.getChannels() + 2 * (1 + nRays(modelChoice)));
+        final long frames = (long) (BATCH_HEAP_FRACTION * freeMemory / bytesPerFrame);
+        return (int) Math.max(1, Math.min(Math.min(MAX_BATCH_SIZE, input.getFrames()), frames));
+    }
+
+    // prob and dist of a single frame of a batch prediction (not copied)
+    private Pair<Dataset, Dataset> frameOf(final Dataset prediction, final int t) {
+        final List<AxisType> predAxes = new ArrayList<>(Utils.orderedAxesSet(prediction));
+        final FloatPlaneStack stack = FloatPlaneStack.of((RandomAccessibleInterval<FloatType>) prediction.getImgPlus());
+        if (stack != null && predAxes.equals(Arrays.asList(Axes.X, Axes.Y, Axes.CHANNEL, Axes.TIME))) {
+            // plane of channel c and frame t is c + C*t
+            final int C = (int) prediction.dimension(Axes.CHANNEL);
+            return new ValuePair<>(
+                    Utils.wrapToDataset(dataset, Opt.PROB_IMAGE, stack.planes(C*t, C*t+1, true), Axes.X, Axes.Y),
+                    Utils.wrapToDataset(dataset, Opt.DIST_IMAGE, stack.planes(C*t+1, C*t+C, false), Axes.X, Axes.Y, Axes.CHANNEL));
+        }
+        final RandomAccessibleInterval<FloatType> frameRAI = Views.hyperSlice((RandomAccessibleInterval<FloatType>) prediction.getImgPlus(), prediction.dimensionIndex(Axes.TIME), t);
+        return splitPrediction(Utils.wrapToDataset(dataset, "Prediction Frame", frameRAI, predAxes.stream().filter(axis -> axis != Axes.TIME)));
+    }
+
+    // blocks until there is space in the queue, fails if its consumer has stopped (due to an error)
+    private static <T> void put(final BlockingQueue<T> queue, final T item, final Future<?> consumer) throws InterruptedException, ExecutionException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (consumer.isDone()) {
+                consumer.get();
+                throw new IllegalStateException("pipeline stage stopped unexpectedly");
+            }
+        }
+    }
+
+    // prediction (prob and dist) or candidates after nms of frame t
+    private static final class Frame {
+        static final Frame END = new Frame(-1, null, null);
+        final int t;
+        final Pair<Dataset, Dataset> probAndDist;
+        final Candidates polygons;
+
+        Frame(final int t, final Pair<Dataset, Dataset> probAndDist, final Candidates polygons) {
+            this.t = t;
+            this.probAndDist = probAndDist;
+            this.polygons = polygons;
+        }
+    }
+
+    // sets all parameters of the CNN prediction except for the input
+    private void setupCNN(final Settings settings, final HashMap<String, Object> paramsCNN, final boolean showProgressDialog) throws IOException {
+        paramsCNN.put("input", settings.input);
+        paramsCNN.put("normalizeInput", settings.normalizeInput);
+        paramsCNN.put("percentileBottom", settings.percentileBottom);
+        paramsCNN.put("percentileTop", settings.percentileTop);
+        paramsCNN.put("clip", false);
+        paramsCNN.put("nTiles", settings.nTiles);
+        paramsCNN.put("blockMultiple", 64);
+        paramsCNN.put("overlap", 64);
+        paramsCNN.put("batchSize", 1);
+        paramsCNN.put("showProgressDialog", showProgressDialog);
+
+        switch (settings.modelChoice) {
+        case Opt.MODEL_FILE:
+            paramsCNN.put("modelFile", settings.modelFile);
+            break;
+        case Opt.MODEL_URL:
+            paramsCNN.put("modelUrl", settings.modelUrl);
+            break;
+        default:
+            final StarDist2DModel pretrainedModel = MODELS.get(settings.modelChoice);
+            if (pretrainedModel.canGetFile()) {
+                paramsCNN.put("modelFile", pretrainedModel.getFile());
+            } else {
+                paramsCNN.put("modelUrl", pretrainedModel.url);
+            }
+            paramsCNN.put("blockMultiple", pretrainedModel.sizeDivBy);
+            paramsCNN.put("overlap", pretrainedModel.tileOverlap);
+        }
+
+        // the parameter nTiles itself is left untouched (e.g. for macro recording and the preview thread).
+        // images too large to be predicted at once are always tiled
+        final boolean forceTiles = isLargeInput(settings.input) && settings.input.getFrames() == 1 && settings.nTiles < 2;
+        if (settings.autoTiles || forceTiles) {
+            final int plannedTiles = planTiles(settings, (int) paramsCNN.get("blockMultiple"), (int) paramsCNN.get("overlap"), nRays(settings.modelChoice));
+            paramsCNN.put("nTiles", plannedTiles);
+            if (!settings.autoTiles)
+                log.warn(String.format("Input image is too large to be predicted at once, using %d tiles.", plannedTiles));
+            else if (settings.verbose)
+                log.info(String.format("%s: %d", Opt.NUM_TILES, plannedTiles));
+        }
+    }
+
+    // number of rays of the model, i.e. its output channels without the probability
+    private static int nRays(final String modelChoice) {
+        return MODELS.containsKey(modelChoice) ? MODELS.get(modelChoice).nRays : NUM_RAYS_ESTIMATE;
+    }
+
+    // memory of the prediction (prob + dist) of a single frame
+    private long predictionBytes() {
+        return 4L * (1 + nRays(modelChoice)) * input.getWidth() * input.getHeight();
+    }
+
+    // fewest tiles such that the estimated memory of the prediction fits into the free heap. for a single tile, the input
+    // is copied and the prediction (1+nRays channels) is kept twice (network output and split into prob and dist).
+    // with more tiles, the same holds for each tile (with the overlap, rounded up to blockMultiple), but the stitched
+    // prediction is additionally kept unless the tiles are streamed (see predictTiled). the candidates come on top
+    private int planTiles(final Settings settings, final int blockMultiple, final int overlap, final int nRays) {
+        final Dataset input = settings.input;
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        final long budget = (long) (AUTO_TILES_HEAP_FRACTION * freeMemory);
+        final long width = input.getWidth(), height = input.getHeight(), pixels = width * height;
+        final long bytesPerPixel = 4 * (input.getChannels() + 2 * (1 + nRays));
+        final long candidateBytes = (long) (CANDIDATE_FRACTION_ESTIMATE * pixels) * (4 * nRays + 8 * (2 * nRays + 4));
+        final boolean streaming = settings.isStreamed() && input.getFrames() == 1;
+        final long stitchedBytes = streaming ? 0 : 4 * pixels * (1 + nRays);
+        final int minTiles = isLargeInput(input) ? 2 : 1;
+        for (int n = minTiles; n <= MAX_AUTO_TILES; n++) {
+            final int[] grid = tileGrid(width, height, n);
+            final long tileWidth  = Math.min(roundUp(width,  blockMultiple), roundUp((width  + grid[0] - 1) / grid[0] + 2 * overlap, blockMultiple));
+            final long tileHeight = Math.min(roundUp(height, blockMultiple), roundUp((height + grid[1] - 1) / grid[1] + 2 * overlap, blockMultiple));
+            final long bytes = candidateBytes + bytesPerPixel * tileWidth * tileHeight + (n == 1 ? 0 : stitchedBytes);
+            if (bytes <= budget)
+                return n;
+        }
+        log.warn(String.format("Prediction might not fit into memory, even with %d tiles.", MAX_AUTO_TILES));
+        return MAX_AUTO_TILES;
+    }
+
+    // tiles along x and y (for n tiles in total), the longer side is split first
+    private static int[] tileGrid(final long width, final long height, final int n) {
+        int tilesX = 1, tilesY = 1;
+        while (tilesX * tilesY < n) {
+            if (width / tilesX >= height / tilesY) tilesX++;
+            else tilesY++;
+        }
+        return new int[]{tilesX, tilesY};
+    }
+
+    private static long roundUp(final long size, final int multiple) {
+        return (size + multiple - 1) / multiple * multiple;
+    }
+
+    // ---------
+
+    // only the thresholds changed -> only nms is repeated (on the cached candidates) and the overlay redrawn.
+    // the prediction is only repeated if the input, model or normalization changed. not supported for timelapse data
+    // and streamed tiles (which don't keep the prediction). the parameters are copied and checked here, on the thread
+    // of the dialog (which may change them meanwhile)
+    @Override
+    public void preview() {
+        if (input == null || Utils.orderedAxesSet(input).contains(Axes.TIME) || isLargeInput()) return;
+        final Settings settings = new Settings(this);
+        if (settings.isStreamed()) return;
+        if (previewCache.getPrediction(settings.predictionKey()) == null && !checkInputs()) return;
+        if (previewExecutor == null)
+            previewExecutor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "StarDist2D preview");
+                thread.setDaemon(true);
+                return thread;
+            });
+        // skip the previous request if it hasn't started yet
+        if (previewTask != null)
+            previewTask.cancel(false);
+        previewTask = previewExecutor.submit(() -> updatePreview(settings));
+    }
+
+    @Override
+    public void cancel() {
+        stopPreview();
+        previewCache.clear();
+    }
+
+    private void updatePreview(final Settings settings) {
+        try {
+            final List<Object> predictionKey = settings.predictionKey();
+            Pair<Dataset, Dataset> probAndDist = previewCache.getPrediction(predictionKey);
+            if (probAndDist == null) {
+                status.showStatus("StarDist preview: CNN prediction");
+                final HashMap<String, Object> paramsCNN = new HashMap<>();
+                setupCNN(settings, paramsCNN, false);
+                probAndDist = splitPrediction(modelSession.predict(paramsCNN).get());
+                previewCache.putPrediction(predictionKey, probAndDist);
+            }
+
+            // candidates extracted with a lower threshold can be reused (except for the rasterized nms)
+            final boolean rasterized = settings.nmsEngine.equals(Opt.NMS_RASTERIZED);
+            final List<Object> candidatesKey = Arrays.asList(predictionKey, settings.excludeBoundary, settings.maximaRadius, settings.cellSize, settings.cellBudget, rasterized ? settings.probThresh : null);
+            Candidates polygons = previewCache.getCandidates(candidatesKey, settings.probThresh);
+            if (polygons == null) {
+                final RandomAccessibleInterval<FloatType> probRAI = (RandomAccessibleInterval<FloatType>) probAndDist.getA().getImgPlus();
+                final RandomAccessibleInterval<FloatType> distRAI = (RandomAccessibleInterval<FloatType>) probAndDist.getB().getImgPlus();
+                polygons = new Candidates(probRAI, distRAI, settings.probThresh, settings.excludeBoundary, settings.maximaRadius, settings.cellSize, settings.cellBudget, settings.verbose ? log : null);
+                previewCache.putCandidates(candidatesKey, settings.probThresh, polygons);
+            }
+            if (rasterized) {
+                polygons.nms_raster(settings.nmsThresh);
+            } else {
+                polygons.setIntersection(settings.intersection.equals(Opt.INTERSECTION_CLIPPER) ? Candidates.Intersection.CLIPPER : Candidates.Intersection.STAR_CONVEX);
+                polygons.nms_graph(settings.probThresh, settings.nmsThresh);
+            }
+
+            final Overlay overlay = new Overlay();
+            for (final int i : polygons.getWinnerIndices())
+                overlay.add(polygons.getPolygonRoi(i));
+            showPreviewOverlay(settings.input, overlay);
+            status.showStatus(String.format("StarDist preview: %d objects", polygons.getWinnerIndices().length));
+        } catch (InterruptedException e) {
+            // preview stopped or replaced by a newer one
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            e.printStackTrace();
+            // reported on the thread of the dialog
+            final Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            SwingUtilities.invokeLater(() -> showError(String.format("StarDist preview failed: %s", cause)));
+        }
+    }
+
+    private synchronized void showPreviewOverlay(final Dataset input, final Overlay overlay) {
+        if (previewExecutor == null) return; // preview stopped in the meantime
+        if (previewImage == null) {
+            previewImage = convert.convert(input, ImagePlus.class);
+            if (previewImage == null) return;
+            previewOverlayBefore = previewImage.getOverlay();
+        }
+        previewImage.setOverlay(overlay);
+    }
+
+    // removes the preview overlay, but keeps the cached results (e.g. for run)
+    private synchronized void stopPreview() {
+        if (previewExecutor != null) {
+            previewExecutor.shutdownNow();
+            previewExecutor = null;
+            previewTask = null;
+        }
+        if (previewImage != null) {
+            previewImage.setOverlay(previewOverlayBefore);
+            previewImage = null;
+            previewOverlayBefore = null;
+        }
+    }
+
+    // the input is split into a grid of paramsCNN "nTiles" tiles (plus the overlap required by the model), which are predicted one after
+    // the other. the candidates of a tile (with their origin in the tile without overlap) are extracted while the next tile
+    // is predicted, afterwards its prediction isn't needed anymore. the input is normalized as a whole beforehand
+    private Candidates predictTiled(final HashMap<String, Object> paramsCNN) throws InterruptedException, ExecutionException {
+        final ImgPlus<? extends RealType<?>> inputImgPlus = input.getImgPlus();
+        final AxisType[] inputAxes = Utils.orderedAxesSet(input).stream().toArray(AxisType[]::new);
+        final int width = (int)input.getWidth(), height = (int)input.getHeight();
+        final int xDim = input.dimensionIndex(Axes.X), yDim = input.dimensionIndex(Axes.Y);
+        final int overlap = (int) paramsCNN.get("overlap");
+
+        final int[] grid = tileGrid(width, height, (int) paramsCNN.get("nTiles"));
+        final RandomAccessibleInterval<? extends RealType<?>> inputRAI = normalizeInput ? normalized(inputImgPlus) : inputImgPlus;
+        paramsCNN.put("normalizeInput", false);
+        paramsCNN.put("nTiles", 1);
+
+        final int tilesX = grid[0], tilesY = grid[1];
+        final int numTiles = tilesX * tilesY;
+        // tile t: core [bounds[8t],bounds[8t+1]) x [bounds[8t+2],bounds[8t+3]), with overlap [bounds[8t+4],bounds[8t+5]) x [bounds[8t+6],bounds[8t+7])
+        final int[] bounds = new int[8*numTiles];
+        for (int ty = 0, t = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++, t++) {
+                final int x0 = (int)((long)tx*width/tilesX), x1 = (int)((long)(tx+1)*width/tilesX);
+                final int y0 = (int)((long)ty*height/tilesY), y1 = (int)((long)(ty+1)*height/tilesY);
+                bounds[8*t  ] = Math.max(excludeBoundary, x0); bounds[8*t+1] = Math.min(width-excludeBoundary, x1);
+                bounds[8*t+2] = Math.max(excludeBoundary, y0); bounds[8*t+3] = Math.min(height-excludeBoundary, y1);
+                bounds[8*t+4] = Math.max(0, x0-overlap); bounds[8*t+5] = Math.min(width, x1+overlap);
+                bounds[8*t+6] = Math.max(0, y0-overlap); bounds[8*t+7] = Math.min(height, y1+overlap);
             }
         }
+
+        final List<Candidates.Tile> tiles = new ArrayList<>(numTiles);
+        Future<Dataset> futureCNN = predictTile(paramsCNN, inputRAI, inputAxes, xDim, yDim, bounds, 0);
+        for (int t = 0; t < numTiles; t++) {
+            final Dataset prediction = futureCNN.get();
+            if (t+1 < numTiles)
+                futureCNN = predictTile(paramsCNN, inputRAI, inputAxes, xDim, yDim, bounds, t+1);
+            final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
+            final int ox = bounds[8*t+4], oy = bounds[8*t+6];
+            tiles.add(new Candidates.Tile(
+                    (RandomAccessibleInterval<FloatType>) probAndDist.getA().getImgPlus(),
+                    (RandomAccessibleInterval<FloatType>) probAndDist.getB().getImgPlus(),
+                    probThresh, maximaRadius, bounds[8*t]-ox, bounds[8*t+1]-ox, bounds[8*t+2]-oy, bounds[8*t+3]-oy, ox, oy, rayStorage(distStorage)));
+            status.showProgress(1+t, numTiles);
+        }
+        return Candidates.ofTiles(width, height, tiles, cellSize, cellBudget, verbose ? log : null);
+    }
+
+    // percentile-normalized view of an image (instead of the normalization of the CNN prediction)
+    private RandomAccessibleInterval<FloatType> normalized(final RandomAccessibleInterval<? extends RealType<?>> rai) {
+        return normalized(rai, Utils.percentiles(rai, percentileBottom, percentileTop));
+    }
+
+    // normalized such that the values range[0] and range[1] become 0 and 1
+    private static RandomAccessibleInterval<FloatType> normalized(final RandomAccessibleInterval<? extends RealType<?>> rai, final double[] range) {
+        final double low = range[0], scale = 1 / Math.max(1e-20, range[1] - range[0]);
+        return Converters.convert((RandomAccessibleInterval<RealType<?>>) (RandomAccessibleInterval<?>) rai,
+                (in, out) -> out.setReal((in.getRealDouble() - low) * scale), new FloatType());
+    }
+
+    private Future<Dataset> predictTile(final HashMap<String, Object> paramsCNN, final RandomAccessibleInterval<? extends RealType<?>> inputRAI,
+                                              final AxisType[] inputAxes, final int xDim, final int yDim, final int[] bounds, final int t) {
+        final long[] min = new long[inputRAI.numDimensions()], max = new long[inputRAI.numDimensions()];
+        for (int d = 0; d < min.length; d++) {
+            min[d] = inputRAI.min(d);
+            max[d] = inputRAI.max(d);
+        }
+        min[xDim] = bounds[8*t+4]; max[xDim] = bounds[8*t+5]-1;
+        min[yDim] = bounds[8*t+6]; max[yDim] = bounds[8*t+7]-1;
+        final HashMap<String, Object> paramsTile = new HashMap<>(paramsCNN);
+        paramsTile.put("input", Utils.raiToDataset(dataset, "Input Tile", Views.zeroMin(Views.interval(inputRAI, min, max)), inputAxes));
+        return modelSession.predict(paramsTile);
     }
 
     // this function is very cumbersome... is there a better way to do this?
+    // prob and dist share the data of the prediction, i.e. nothing is copied
     private Pair<Dataset, Dataset> splitPrediction(final Dataset prediction) {
         final RandomAccessibleInterval<FloatType> predictionRAI = (RandomAccessibleInterval<FloatType>) prediction.getImgPlus();
         final LinkedHashSet<AxisType> predAxes = Utils.orderedAxesSet(prediction);
 
+        // planes of the prediction, such that Candidates can still read the arrays directly
+        final FloatPlaneStack stack = FloatPlaneStack.of(predictionRAI);
+        if (stack != null && new ArrayList<>(predAxes).equals(Arrays.asList(Axes.X, Axes.Y, Axes.CHANNEL))) {
+            final int C = (int) prediction.dimension(Axes.CHANNEL);
+            return new ValuePair<>(
+                    Utils.wrapToDataset(dataset, Opt.PROB_IMAGE, stack.planes(0, 1, true), Axes.X, Axes.Y),
+                    Utils.wrapToDataset(dataset, Opt.DIST_IMAGE, stack.planes(1, C, false), Axes.X, Axes.Y, Axes.CHANNEL));
+        }
+
         final int predChannelDim = IntStream.range(0, predAxes.size()).filter(d -> prediction.axis(d).type() == Axes.CHANNEL).findFirst().getAsInt();
         final long[] predStart = predAxes.stream().mapToLong(axis -> {
             return axis == Axes.CHANNEL ? 1 : 0;
@@ -356,8 +828,8 @@ public class StarDist2D extends StarDist2DBase implements Command {
         final RandomAccessibleInterval<FloatType> probRAI = Views.hyperSlice(predictionRAI, predChannelDim, 0);
         final RandomAccessibleInterval<FloatType> distRAI = Views.offsetInterval(predictionRAI, predStart, predSize);
 
-        final Dataset probDS = Utils.raiToDataset(dataset, Opt.PROB_IMAGE, probRAI, predAxes.stream().filter(axis -> axis != Axes.CHANNEL));
-        final Dataset distDS = Utils.raiToDataset(dataset, Opt.DIST_IMAGE, distRAI, predAxes);
+        final Dataset probDS = Utils.wrapToDataset(dataset, Opt.PROB_IMAGE, probRAI, predAxes.stream().filter(axis -> axis != Axes.CHANNEL));
+        final Dataset distDS = Utils.wrapToDataset(dataset, Opt.DIST_IMAGE, distRAI, predAxes);
 
         return new ValuePair<>(probDS, distDS);
     }
@@ -377,6 +849,21 @@ public class StarDist2D extends StarDist2DBase implements Command {
         if (!(roiPosition.equals(Opt.ROI_POSITION_AUTO) || roiPosition.equals(Opt.ROI_POSITION_STACK) || roiPosition.equals(Opt.ROI_POSITION_HYPERSTACK)))
             return showError(String.format("%s must be one of {\"%s\", \"%s\", \"%s\"}.", Opt.ROI_POSITION, Opt.ROI_POSITION_AUTO, Opt.ROI_POSITION_STACK, Opt.ROI_POSITION_HYPERSTACK));        
 
+        if (!(distStorage.equals(Opt.DIST_FLOAT32) || distStorage.equals(Opt.DIST_FLOAT16) || distStorage.equals(Opt.DIST_INT16)))
+            return showError(String.format("%s must be one of {\"%s\", \"%s\", \"%s\"}.", Opt.DIST_STORAGE, Opt.DIST_FLOAT32, Opt.DIST_FLOAT16, Opt.DIST_INT16));
+
+        // timelapses are predicted frame by frame (as before), only frames beyond the array size limit can't be processed
+        if (input.getFrames() > 1 && input.getWidth() * input.getHeight() > Integer.MAX_VALUE - 8)
+            return showError("Timelapse frames with more than 2^31 pixels are not supported, only single images of that size.");
+
+        // tiles are streamed and chosen automatically for images too large to be predicted at once (see setupCNN)
+        if (isLargeInput() && input.getFrames() == 1) {
+            if (showProbAndDist)
+                return showError(String.format("\"%s\" is not supported for images with more than 2^31 pixels.", Opt.SHOW_PROB_DIST));
+            if (nmsEngine.equals(Opt.NMS_RASTERIZED))
+                return showError(String.format("%s \"%s\" is not supported for images with more than 2^31 pixels.", Opt.NMS_ENGINE, Opt.NMS_RASTERIZED));
+        }
+
         return true;
     }
 
@@ -385,12 +872,83 @@ public class StarDist2D extends StarDist2DBase implements Command {
     protected void exportPolygons(Candidates polygons) {}
 
 
+    // too large to be predicted at once, since a single channel doesn't fit into a java array. the input itself may be
+    // a lazily loaded cell image (e.g. opened from disk with SCIFIO), which is only read tile by tile
+    private boolean isLargeInput() {
+        return isLargeInput(input);
+    }
+
+    private static boolean isLargeInput(final Dataset input) {
+        return input.getWidth() * input.getHeight() > Integer.MAX_VALUE - 8;
+    }
+
+    @Override
+    protected Img<UnsignedShortType> createCachedLabelImage() {
+        final boolean isCellInput = input.getImgPlus().getImg() instanceof AbstractCellImg;
+        final long pixels = input.getWidth() * input.getHeight() * input.getFrames();
+        if (!(isCellInput || isLargeInput() || 2 * pixels > LARGE_INPUT_HEAP_FRACTION * Runtime.getRuntime().maxMemory()))
+            return null;
+        final long[] dims = input.getFrames() > 1 ? new long[]{input.getWidth(), input.getHeight(), input.getFrames()} : new long[]{input.getWidth(), input.getHeight()};
+        final int[] cellDims = input.getFrames() > 1 ? new int[]{LABEL_CELL_SIZE, LABEL_CELL_SIZE, 1} : new int[]{LABEL_CELL_SIZE, LABEL_CELL_SIZE};
+        return new DiskCachedCellImgFactory<>(new UnsignedShortType(), DiskCachedCellImgOptions.options().cellDimensions(cellDims)).create(dims);
+    }
+
     @Override
     protected ImagePlus createLabelImage() {
         return IJ.createImage(Opt.LABEL_IMAGE, "16-bit black", (int)input.getWidth(), (int)input.getHeight(), 1, 1, (int)input.getFrames());
     }
 
 
+    // parameters of a run or preview, copied from the fields (which the dialog may change concurrently)
+    private static final class Settings {
+        final Dataset input;
+        final String modelChoice;
+        final File modelFile;
+        final String modelUrl;
+        final boolean normalizeInput;
+        final double percentileBottom, percentileTop;
+        final int nTiles;
+        final boolean autoTiles, streamTiles;
+        final double probThresh, nmsThresh;
+        final int excludeBoundary, maximaRadius, cellSize, cellBudget;
+        final String nmsEngine, intersection;
+        final boolean showProbAndDist, verbose;
+
+        Settings(final StarDist2D c) {
+            input = c.input;
+            modelChoice = c.modelChoice;
+            modelFile = c.modelFile;
+            modelUrl = c.modelUrl;
+            normalizeInput = c.normalizeInput;
+            percentileBottom = c.percentileBottom;
+            percentileTop = c.percentileTop;
+            nTiles = c.nTiles;
+            autoTiles = c.autoTiles;
+            streamTiles = c.streamTiles;
+            probThresh = c.probThresh;
+            nmsThresh = c.nmsThresh;
+            excludeBoundary = c.excludeBoundary;
+            maximaRadius = c.maximaRadius;
+            cellSize = c.cellSize;
+            cellBudget = c.cellBudget;
+            nmsEngine = c.nmsEngine;
+            intersection = c.intersection;
+            showProbAndDist = c.showProbAndDist;
+            verbose = c.verbose;
+        }
+
+        // parameters that the CNN prediction depends on
+        List<Object> predictionKey() {
+            return Arrays.asList(input, modelChoice, modelFile, modelUrl, normalizeInput, percentileBottom, percentileTop, autoTiles ? null : nTiles);
+        }
+
+        // tiles are streamed if asked for or if the input is too large to be predicted at once (but not to show prob and dist)
+        boolean isStreamed() {
+            return (streamTiles || isLargeInput(input)) && !showProbAndDist;
+        }
+    }
+
+
     public static void main(final String... args) throws Exception {
         final ImageJ ij = new ImageJ();
         ij.launch(args);
@@ -1,7 +1,7 @@
 package de.csbdresden.stardist;
 
+import java.awt.Rectangle;
 import java.net.URL;
-import java.util.List;
 
 import org.scijava.app.StatusService;
 import org.scijava.command.CommandService;
@@ -21,8 +21,12 @@ import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imagej.lut.LUTService;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.view.Views;
 
 public abstract class StarDist2DBase {
 
@@ -51,6 +55,8 @@ public abstract class StarDist2DBase {
 
     protected RoiManager roiManager = null;
     protected ImagePlus labelImage = null;
+    // instead of labelImage if it is too large to be kept in memory (see createCachedLabelImage)
+    protected Img<UnsignedShortType> cachedLabelImage = null;
     protected int labelId = 0;
     protected long labelCount = 0;
     protected static final int MAX_LABEL_ID = 65535;
@@ -97,7 +103,7 @@ public abstract class StarDist2DBase {
             roiManager.reset(); // clear all rois
         }
 
-        for (final int i : polygons.getWinner()) {
+        for (final int i : polygons.getWinnerIndices()) {
             final PolygonRoi polyRoi = polygons.getPolygonRoi(i);
             if (isTimelapse) setRoiPosition(polyRoi, framePosition, roiPosition);
             roiManager.add(polyRoi, -1);
@@ -129,36 +135,97 @@ public abstract class StarDist2DBase {
     }
 
     protected void exportLabelImage(Candidates polygons, int framePosition) {
-        if (labelImage == null)
-            labelImage = createLabelImage();
+        if (labelImage == null && cachedLabelImage == null) {
+            cachedLabelImage = createCachedLabelImage();
+            if (cachedLabelImage == null)
+                labelImage = createLabelImage();
+        }
+        if (cachedLabelImage != null) {
+            exportCachedLabelImage(polygons, framePosition);
+            return;
+        }
         if (framePosition > 0)
             labelImage.setT(framePosition);
         final ImageProcessor ip = labelImage.getProcessor();
-        final List<Integer> winner = polygons.getWinner();
-        final int numWinners = winner.size();
+        final int[] winner = polygons.getWinnerIndices();
+        final int numWinners = winner.length;
         // winners are ordered by score -> draw from last to first to give priority to higher scores in case of overlaps
         for (int i = numWinners-1; i >= 0; i--) {
-            final PolygonRoi polyRoi = polygons.getPolygonRoi(winner.get(i));
+            final PolygonRoi polyRoi = polygons.getPolygonRoi(winner[i]);
             ip.setColor(1 + ((labelId + i) % MAX_LABEL_ID));
             ip.fill(polyRoi);
         }
+        countLabels(numWinners);
+    }
+
+    // same as above, but each polygon is drawn pixel by pixel (within its bounding box), only touching the cells it covers
+    private void exportCachedLabelImage(Candidates polygons, int framePosition) {
+        final RandomAccessibleInterval<UnsignedShortType> frame = framePosition > 0 ? Views.hyperSlice(cachedLabelImage, 2, framePosition-1) : cachedLabelImage;
+        final RandomAccess<UnsignedShortType> ra = frame.randomAccess();
+        final long width = frame.dimension(0), height = frame.dimension(1);
+        final int[] winner = polygons.getWinnerIndices();
+        final int numWinners = winner.length;
+        for (int i = numWinners-1; i >= 0; i--) {
+            final PolygonRoi polyRoi = polygons.getPolygonRoi(winner[i]);
+            final int value = 1 + ((labelId + i) % MAX_LABEL_ID);
+            final Rectangle r = polyRoi.getBounds();
+            final ImageProcessor mask = polyRoi.getMask();
+            final int xmin = Math.max(0, r.x), xmax = (int) Math.min(width, (long) r.x + r.width);
+            final int ymin = Math.max(0, r.y), ymax = (int) Math.min(height, (long) r.y + r.height);
+            for (int y = ymin; y < ymax; y++) {
+                ra.setPosition(y, 1);
+                for (int x = xmin; x < xmax; x++) {
+                    if (mask != null && mask.get(x - r.x, y - r.y) == 0) continue;
+                    ra.setPosition(x, 0);
+                    ra.get().set(value);
+                }
+            }
+        }
+        countLabels(numWinners);
+    }
+
+    // label ids are reused after MAX_LABEL_ID (16 bit label image), which is reported as soon as it happens
+    private void countLabels(int numWinners) {
+        if (labelCount <= MAX_LABEL_ID && labelCount + numWinners > MAX_LABEL_ID)
+            log.warn(String.format("More than %d segments -> label IDs of the label image are reused from now on.\n(\"%s\" output instead does not have this problem).", MAX_LABEL_ID, Opt.OUTPUT_ROI_MANAGER));
         labelCount += numWinners;
         labelId = (labelId + numWinners) % MAX_LABEL_ID;
     }
 
+    protected void nms(Candidates polygons, double nmsThresh, String nmsEngine, String intersection) {
+        if (nmsEngine.equals(Opt.NMS_RASTERIZED)) {
+            polygons.nms_raster(nmsThresh);
+        } else {
+            polygons.setIntersection(intersection.equals(Opt.INTERSECTION_CLIPPER) ? Candidates.Intersection.CLIPPER : Candidates.Intersection.STAR_CONVEX);
+            polygons.nms(nmsThresh);
+        }
+    }
+
+    // storage of the ray lengths of candidates that don't reference the distance image
+    protected static Candidates.RayStorage rayStorage(String distStorage) {
+        if (distStorage.equals(Opt.DIST_FLOAT16)) return Candidates.RayStorage.FLOAT16;
+        if (distStorage.equals(Opt.DIST_INT16)) return Candidates.RayStorage.INT16;
+        return Candidates.RayStorage.FLOAT32;
+    }
+
     abstract protected void exportPolygons(Candidates polygons);
 
     abstract protected ImagePlus createLabelImage();
 
+    // label image with dimensions X,Y(,TIME) whose cells may be written to disk, or null to use createLabelImage
+    protected Img<UnsignedShortType> createCachedLabelImage() {
+        return null;
+    }
+
     protected Dataset labelImageToDataset(String outputType) {
         if (outputType.equals(Opt.OUTPUT_LABEL_IMAGE) || outputType.equals(Opt.OUTPUT_BOTH)) {
             if (labelCount > MAX_LABEL_ID) {
                 log.error(String.format("Found more than %d segments -> label image does contain some repetitive IDs.\n(\"%s\" output instead does not have this problem).", MAX_LABEL_ID, Opt.OUTPUT_ROI_MANAGER));
             }
-            final boolean isTimelapse = labelImage.getNFrames() > 1;
-            final Img labelImg = (Img) ImageJFunctions.wrap(labelImage);
+            final boolean isTimelapse = cachedLabelImage != null ? cachedLabelImage.numDimensions() > 2 : labelImage.getNFrames() > 1;
             final AxisType[] axes = isTimelapse ? new AxisType[]{Axes.X, Axes.Y, Axes.TIME} : new AxisType[]{Axes.X, Axes.Y};
-            final Dataset ds = Utils.raiToDataset(dataset, Opt.LABEL_IMAGE, labelImg, axes);
+            // the label image is not copied
+            final Dataset ds = Utils.wrapToDataset(dataset, Opt.LABEL_IMAGE, cachedLabelImage != null ? cachedLabelImage : (Img) ImageJFunctions.wrap(labelImage), axes);
             // set LUT 
             try {
                 ds.initializeColorTables(1);                
@@ -3,8 +3,6 @@ package de.csbdresden.stardist;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -19,9 +17,9 @@ public class StarDist2DModel {
     
     static final Map<String, StarDist2DModel> MODELS = new LinkedHashMap<String, StarDist2DModel>();
     static {
-        MODELS.put(MODEL_DSB2018_PAPER, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/dsb2018_paper.zip"), 0.417819, 0.5, 8, 48));
-        MODELS.put(MODEL_DSB2018_HEAVY_AUGMENTATION, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/dsb2018_heavy_augment.zip"), 0.479071, 0.3, 16, 96));
-        MODELS.put(MODEL_HE_HEAVY_AUGMENTATION, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/he_heavy_augment.zip"), 0.692478, 0.3, 16, 96));
+        MODELS.put(MODEL_DSB2018_PAPER, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/dsb2018_paper.zip"), 0.417819, 0.5, 8, 48, 32));
+        MODELS.put(MODEL_DSB2018_HEAVY_AUGMENTATION, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/dsb2018_heavy_augment.zip"), 0.479071, 0.3, 16, 96, 32));
+        MODELS.put(MODEL_HE_HEAVY_AUGMENTATION, new StarDist2DModel(StarDist2DModel.class.getClassLoader().getResource("models/2D/he_heavy_augment.zip"), 0.692478, 0.3, 16, 96, 32));
     }
     
     // -----------
@@ -31,33 +29,29 @@ public class StarDist2DModel {
     public final double nmsThresh;
     public final int sizeDivBy;
     public final int tileOverlap;
+    public final int nRays;
     private final String protocol;
     
-    public StarDist2DModel(URL url, double probThresh, double nmsThresh, int sizeDivBy, int tileOverlap) {
+    public StarDist2DModel(URL url, double probThresh, double nmsThresh, int sizeDivBy, int tileOverlap, int nRays) {
         this.url = url;
         this.protocol = url.getProtocol().toLowerCase();
         this.probThresh = probThresh;
         this.nmsThresh = nmsThresh;
         this.sizeDivBy = sizeDivBy;
         this.tileOverlap = tileOverlap;
+        this.nRays = nRays;
     }
     
     public boolean canGetFile() {
         return protocol.equals("file") || protocol.equals("jar");
     }
 
-    public boolean isTempFile() {
-        return protocol.equals("jar");
-    }
-    
     public File getFile() throws IOException {
         switch (protocol) {
         case "file":
             return FileUtils.urlToFile(url);
         case "jar":
-            final File tmpModelFile = File.createTempFile("stardist_model_", ".zip");
-            Files.copy(url.openStream(), tmpModelFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-            return tmpModelFile;            
+            return ModelCache.getFile(url);
         default:
             return null;
         }
@@ -1,8 +1,15 @@
 package de.csbdresden.stardist;
 
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.IntStream;
 
 import org.scijava.ItemIO;
@@ -63,10 +70,34 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
 
     @Parameter(label=Opt.EXCLUDE_BNDRY, min="0", stepSize="1")
     private int excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+
+    // optional candidate prefilter (0 = disabled)
+    @Parameter(label=Opt.MAXIMA_RADIUS, min="0", stepSize="1")
+    private int maximaRadius = (int) Opt.getDefault(Opt.MAXIMA_RADIUS);
+
+    @Parameter(label=Opt.CELL_SIZE, min="1", stepSize="1")
+    private int cellSize = (int) Opt.getDefault(Opt.CELL_SIZE);
+
+    @Parameter(label=Opt.CELL_BUDGET, min="0", stepSize="1")
+    private int cellBudget = (int) Opt.getDefault(Opt.CELL_BUDGET);
+
+    @Parameter(label=Opt.NMS_ENGINE, choices={Opt.NMS_EXACT, Opt.NMS_RASTERIZED}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String nmsEngine = (String) Opt.getDefault(Opt.NMS_ENGINE);
+
+    @Parameter(label=Opt.POLYGON_INTERSECTION, choices={Opt.INTERSECTION_STAR_CONVEX, Opt.INTERSECTION_CLIPPER}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String intersection = (String) Opt.getDefault(Opt.POLYGON_INTERSECTION);
     
+    // 16 bit: candidates keep their (rounded) ray lengths themselves instead of referencing the distance image
+    @Parameter(label=Opt.DIST_STORAGE, choices={Opt.DIST_FLOAT32, Opt.DIST_FLOAT16, Opt.DIST_INT16}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
+    private String distStorage = (String) Opt.getDefault(Opt.DIST_STORAGE);
+
     @Parameter(label=Opt.ROI_POSITION, choices={Opt.ROI_POSITION_STACK, Opt.ROI_POSITION_HYPERSTACK}, style=ChoiceWidget.RADIO_BUTTON_HORIZONTAL_STYLE)
     private String roiPosition = (String) Opt.getDefault(Opt.ROI_POSITION);
 
+    // frames of a timelapse are processed concurrently (0 = number of processors)
+    @Parameter(label=Opt.NUM_THREADS, min="0", stepSize="1")
+    private int numThreads = (int) Opt.getDefault(Opt.NUM_THREADS);
+
     @Parameter(label=Opt.VERBOSE)
     private boolean verbose = (boolean) Opt.getDefault(Opt.VERBOSE);
 
@@ -75,12 +106,23 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
 
     // ---------
 
+    private static final int FRAMES_PER_THREAD = 2;
+
+    // ---------
+
     private void restoreDefaults() {
         probThresh = (double) Opt.getDefault(Opt.PROB_THRESH);
         nmsThresh = (double) Opt.getDefault(Opt.NMS_THRESH);
         outputType = (String) Opt.getDefault(Opt.OUTPUT_TYPE);
         excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+        maximaRadius = (int) Opt.getDefault(Opt.MAXIMA_RADIUS);
+        cellSize = (int) Opt.getDefault(Opt.CELL_SIZE);
+        cellBudget = (int) Opt.getDefault(Opt.CELL_BUDGET);
+        nmsEngine = (String) Opt.getDefault(Opt.NMS_ENGINE);
+        intersection = (String) Opt.getDefault(Opt.POLYGON_INTERSECTION);
+        distStorage = (String) Opt.getDefault(Opt.DIST_STORAGE);
         roiPosition = (String) Opt.ROI_POSITION_STACK;
+        numThreads = (int) Opt.getDefault(Opt.NUM_THREADS);
         verbose = (boolean) Opt.getDefault(Opt.VERBOSE);
     }
 
@@ -103,18 +145,48 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
             final int distTimeDim = IntStream.range(0, distAxes.size()).filter(d -> dist.axis(d).type() == Axes.TIME).findFirst().getAsInt();
             final long numFrames = prob.getFrames();
 
-            for (int t = 0; t < numFrames; t++) {
-                final Candidates polygons = new Candidates(Views.hyperSlice(probRAI, probTimeDim, t), Views.hyperSlice(distRAI, distTimeDim, t), probThresh, excludeBoundary, verbose ? log : null);
-                polygons.nms(nmsThresh);
-                if (verbose)
-                    log.info(String.format("frame %03d: %d polygon candidates, %d remain after non-maximum suppression", t, polygons.getSorted().size(), polygons.getWinner().size()));
-                export(outputType, polygons, 1+t, numFrames, roiPosition);
+            // frames are processed concurrently, but exported in order (one after the other, which keeps the label ids
+            // consecutive). at most FRAMES_PER_THREAD frames per thread are processed ahead of the export
+            final int threads = numThreads > 0 ? numThreads : Runtime.getRuntime().availableProcessors();
+            final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                final Thread thread = new Thread(r, "StarDist2D NMS");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                final Queue<Future<Candidates>> pending = new ArrayDeque<>();
+                int next = 0;
+                for (int t = 0; t < numFrames; t++) {
+                    while (next < numFrames && pending.size() < FRAMES_PER_THREAD * threads) {
+                        final int frame = next++;
+                        pending.add(pool.submit(() -> {
+                            final Candidates polygons = candidates(Views.hyperSlice(probRAI, probTimeDim, frame), Views.hyperSlice(distRAI, distTimeDim, frame));
+                            nms(polygons);
+                            if (verbose)
+                                log.info(String.format("frame %03d: %d polygon candidates, %d remain after non-maximum suppression", frame, polygons.getSortedIndices().length, polygons.getWinnerIndices().length));
+                            return polygons;
+                        }));
+                    }
+                    export(outputType, pending.remove().get(), 1+t, numFrames, roiPosition);
+                    status.showProgress(1+t, (int)numFrames);
+                }
+            } catch (InterruptedException e) {
+                // cancelled (e.g. by the calling command): keep the interrupt status and don't return a partial result
+                Thread.currentThread().interrupt();
+                final CancellationException cancelled = new CancellationException("Non-maximum suppression interrupted");
+                cancelled.initCause(e);
+                throw cancelled;
+            } catch (ExecutionException e) {
+                showError(String.format("Non-maximum suppression failed: %s", e.getCause() != null ? e.getCause() : e));
+                return;
+            } finally {
+                pool.shutdownNow();
             }
         } else {
-            final Candidates polygons = new Candidates(probRAI, distRAI, probThresh, excludeBoundary, verbose ? log : null);
-            polygons.nms(nmsThresh);
+            final Candidates polygons = candidates(probRAI, distRAI);
+            nms(polygons);
             if (verbose)
-                log.info(String.format("%d polygon candidates, %d remain after non-maximum suppression", polygons.getSorted().size(), polygons.getWinner().size()));
+                log.info(String.format("%d polygon candidates, %d remain after non-maximum suppression", polygons.getSortedIndices().length, polygons.getWinnerIndices().length));
             export(outputType, polygons, 0, 0, roiPosition);
         }
 
@@ -162,12 +234,33 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
         if (excludeBoundary < 0)
             return showError(String.format("%s must be >= 0", Opt.EXCLUDE_BNDRY));
 
+        if (maximaRadius < 0)
+            return showError(String.format("%s must be >= 0", Opt.MAXIMA_RADIUS));
+
+        if (cellSize < 1)
+            return showError(String.format("%s must be >= 1", Opt.CELL_SIZE));
+
+        if (cellBudget < 0)
+            return showError(String.format("%s must be >= 0", Opt.CELL_BUDGET));
+
+        if (numThreads < 0)
+            return showError(String.format("%s must be >= 0", Opt.NUM_THREADS));
+
+        if (!(nmsEngine.equals(Opt.NMS_EXACT) || nmsEngine.equals(Opt.NMS_RASTERIZED)))
+            return showError(String.format("%s must be one of {\"%s\", \"%s\"}.", Opt.NMS_ENGINE, Opt.NMS_EXACT, Opt.NMS_RASTERIZED));
+
+        if (!(intersection.equals(Opt.INTERSECTION_STAR_CONVEX) || intersection.equals(Opt.INTERSECTION_CLIPPER)))
+            return showError(String.format("%s must be one of {\"%s\", \"%s\"}.", Opt.POLYGON_INTERSECTION, Opt.INTERSECTION_STAR_CONVEX, Opt.INTERSECTION_CLIPPER));
+
         if (!(outputType.equals(Opt.OUTPUT_ROI_MANAGER) || outputType.equals(Opt.OUTPUT_LABEL_IMAGE) || outputType.equals(Opt.OUTPUT_BOTH) || outputType.equals(Opt.OUTPUT_POLYGONS)))
             return showError(String.format("%s must be one of {\"%s\", \"%s\", \"%s\"}.", Opt.OUTPUT_TYPE, Opt.OUTPUT_ROI_MANAGER, Opt.OUTPUT_LABEL_IMAGE, Opt.OUTPUT_BOTH));
 
         if (outputType.equals(Opt.OUTPUT_POLYGONS) && probAxes.contains(Axes.TIME))
             return showError(String.format("Timelapse not supported for output type \"%s\"", Opt.OUTPUT_POLYGONS));
 
+        if (!(distStorage.equals(Opt.DIST_FLOAT32) || distStorage.equals(Opt.DIST_FLOAT16) || distStorage.equals(Opt.DIST_INT16)))
+            return showError(String.format("%s must be one of {\"%s\", \"%s\", \"%s\"}.", Opt.DIST_STORAGE, Opt.DIST_FLOAT32, Opt.DIST_FLOAT16, Opt.DIST_INT16));
+
         if (!(roiPosition.equals(Opt.ROI_POSITION_STACK) || roiPosition.equals(Opt.ROI_POSITION_HYPERSTACK)))
             return showError(String.format("%s must be one of {\"%s\", \"%s\"}.", Opt.ROI_POSITION, Opt.ROI_POSITION_STACK, Opt.ROI_POSITION_HYPERSTACK));        
         
@@ -175,6 +268,19 @@ public class StarDist2DNMS extends StarDist2DBase implements Command {
     }
 
 
+    private Candidates candidates(final RandomAccessibleInterval<FloatType> probRAI, final RandomAccessibleInterval<FloatType> distRAI) {
+        if (distStorage.equals(Opt.DIST_FLOAT32))
+            return new Candidates(probRAI, distRAI, probThresh, excludeBoundary, maximaRadius, cellSize, cellBudget, verbose ? log : null);
+        else
+            return Candidates.sparse(probRAI, distRAI, probThresh, excludeBoundary, maximaRadius, cellSize, cellBudget, rayStorage(distStorage), verbose ? log : null);
+    }
+
+
+    private void nms(final Candidates polygons) {
+        nms(polygons, nmsThresh, nmsEngine, intersection);
+    }
+
+
     @Override
     protected void exportPolygons(Candidates polygons) {
         this.polygons = polygons;
@@ -0,0 +1,394 @@
+package de.csbdresden.stardist;
+
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
+import org.scijava.command.Command;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.Button;
+
+import de.csbdresden.CommandFromMacro;
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+@Plugin(type = Command.class, label = "StarDist 2D Threshold Optimization", menu = {
+        @Menu(label = MenuConstants.PLUGINS_LABEL, weight = MenuConstants.PLUGINS_WEIGHT, mnemonic = MenuConstants.PLUGINS_MNEMONIC),
+        @Menu(label = "StarDist"),
+        @Menu(label = "Other"),
+        @Menu(label = "StarDist 2D Threshold Optimization", weight = 3)
+})
+public class StarDist2DOptimizeThresholds extends StarDist2DBase implements Command {
+
+    @Parameter(label=Opt.PROB_IMAGE)
+    private Dataset prob;
+
+    @Parameter(label=Opt.DIST_IMAGE)
+    private Dataset dist;
+
+    @Parameter(label=Opt.GROUND_TRUTH_IMAGE)
+    private Dataset groundTruth;
+
+    @Parameter(label=Opt.PROB_THRESH_MIN, stepSize="0.05", min="0", max="1")
+    private double probThreshMin = (double) Opt.getDefault(Opt.PROB_THRESH_MIN);
+
+    @Parameter(label=Opt.PROB_THRESH_MAX, stepSize="0.05", min="0", max="1")
+    private double probThreshMax = (double) Opt.getDefault(Opt.PROB_THRESH_MAX);
+
+    @Parameter(label=Opt.PROB_THRESH_STEP, stepSize="0.01", min="0.001", max="1")
+    private double probThreshStep = (double) Opt.getDefault(Opt.PROB_THRESH_STEP);
+
+    @Parameter(label=Opt.NMS_THRESH_MIN, stepSize="0.05", min="0", max="1")
+    private double nmsThreshMin = (double) Opt.getDefault(Opt.NMS_THRESH_MIN);
+
+    @Parameter(label=Opt.NMS_THRESH_MAX, stepSize="0.05", min="0", max="1")
+    private double nmsThreshMax = (double) Opt.getDefault(Opt.NMS_THRESH_MAX);
+
+    @Parameter(label=Opt.NMS_THRESH_STEP, stepSize="0.01", min="0.001", max="1")
+    private double nmsThreshStep = (double) Opt.getDefault(Opt.NMS_THRESH_STEP);
+
+    // at least 0.5, such that the matching is unique (see match)
+    @Parameter(label=Opt.IOU_THRESH, stepSize="0.05", min="0.5", max="1")
+    private double iouThresh = (double) Opt.getDefault(Opt.IOU_THRESH);
+
+    @Parameter(label=Opt.PROB_THRESH, type=ItemIO.OUTPUT)
+    private double bestProbThresh;
+
+    @Parameter(label=Opt.NMS_THRESH, type=ItemIO.OUTPUT)
+    private double bestNmsThresh;
+
+    // ---------
+
+    @Parameter(visibility=ItemVisibility.MESSAGE)
+    private final String advMsg = "<html><u>Advanced</u></html>";
+
+    @Parameter(label=Opt.EXCLUDE_BNDRY, min="0", stepSize="1")
+    private int excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+
+    @Parameter(label=Opt.VERBOSE)
+    private boolean verbose = (boolean) Opt.getDefault(Opt.VERBOSE);
+
+    @Parameter(label=Opt.RESTORE_DEFAULTS, callback="restoreDefaults")
+    private Button restoreDefaults;
+
+    // ---------
+
+    // size of the grid cells used to find overlapping winners when matching (see match)
+    private static final int MATCH_CELL_SIZE = 64;
+    // pairs of thresholds whose matching may be pending per thread
+    private static final int MATCHES_PER_THREAD = 2;
+
+    // ---------
+
+    private void restoreDefaults() {
+        probThreshMin = (double) Opt.getDefault(Opt.PROB_THRESH_MIN);
+        probThreshMax = (double) Opt.getDefault(Opt.PROB_THRESH_MAX);
+        probThreshStep = (double) Opt.getDefault(Opt.PROB_THRESH_STEP);
+        nmsThreshMin = (double) Opt.getDefault(Opt.NMS_THRESH_MIN);
+        nmsThreshMax = (double) Opt.getDefault(Opt.NMS_THRESH_MAX);
+        nmsThreshStep = (double) Opt.getDefault(Opt.NMS_THRESH_STEP);
+        iouThresh = (double) Opt.getDefault(Opt.IOU_THRESH);
+        excludeBoundary = (int) Opt.getDefault(Opt.EXCLUDE_BNDRY);
+        verbose = (boolean) Opt.getDefault(Opt.VERBOSE);
+    }
+
+    // ---------
+
+    @Override
+    public void run() {
+        if (!checkInputs()) return;
+        final long start = System.currentTimeMillis();
+
+        final RandomAccessibleInterval<FloatType> probRAI = (RandomAccessibleInterval<FloatType>) prob.getImgPlus();
+        final RandomAccessibleInterval<FloatType> distRAI = (RandomAccessibleInterval<FloatType>) dist.getImgPlus();
+        final int width = (int) prob.getWidth(), height = (int) prob.getHeight();
+        final int[] gtLabels = readLabels((RandomAccessibleInterval<? extends RealType<?>>) groundTruth.getImgPlus(), width, height);
+        final long[] gtAreas = areas(gtLabels);
+
+        final double[] probThreshs = thresholds(probThreshMin, probThreshMax, probThreshStep);
+        final double[] nmsThreshs = thresholds(nmsThreshMin, nmsThreshMax, nmsThreshStep);
+        final int numPairs = probThreshs.length * nmsThreshs.length;
+
+        // candidates of the lowest prob threshold contain those of all others, the nms of each
+        // pair of thresholds is a walk over their overlap graph (sequential, since it updates the graph).
+        // the winners of each pair are matched with the ground truth in parallel while the nms continues,
+        // at most MATCHES_PER_THREAD pairs per thread are pending (only the scores of a matching are kept)
+        final Candidates polygons = new Candidates(probRAI, distRAI, probThreshs[0], excludeBoundary, verbose ? log : null);
+        final Matching[] matchings = new Matching[numPairs];
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "StarDist2D matching");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final Queue<Future<?>> pending = new ArrayDeque<>();
+            for (int p = 0; p < probThreshs.length; p++) {
+                for (int q = 0; q < nmsThreshs.length; q++) {
+                    polygons.nms_graph(probThreshs[p], nmsThreshs[q]);
+                    final int[] winner = polygons.getWinnerIndices();
+                    final int k = p*nmsThreshs.length + q;
+                    while (pending.size() >= MATCHES_PER_THREAD * threads)
+                        pending.remove().get();
+                    pending.add(pool.submit(() -> {
+                        matchings[k] = match(polygons, winner, gtLabels, gtAreas, width, height, iouThresh);
+                    }));
+                }
+                status.showProgress(1+p, probThreshs.length);
+            }
+            while (!pending.isEmpty())
+                pending.remove().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final CancellationException cancelled = new CancellationException("Threshold optimization interrupted");
+            cancelled.initCause(e);
+            throw cancelled;
+        } catch (ExecutionException e) {
+            showError(String.format("Matching with the ground truth failed: %s", e.getCause() != null ? e.getCause() : e));
+            return;
+        } finally {
+            pool.shutdownNow();
+        }
+
+        final ResultsTable table = new ResultsTable();
+        int best = 0;
+        for (int k = 0; k < numPairs; k++) {
+            final Matching m = matchings[k];
+            table.incrementCounter();
+            table.addValue(Opt.PROB_THRESH, probThreshs[k / nmsThreshs.length]);
+            table.addValue(Opt.NMS_THRESH, nmsThreshs[k % nmsThreshs.length]);
+            table.addValue("TP", m.tp);
+            table.addValue("FP", m.fp);
+            table.addValue("FN", m.fn);
+            table.addValue("Precision", m.precision());
+            table.addValue("Recall", m.recall());
+            table.addValue("F1", m.f1());
+            table.addValue("Accuracy", m.accuracy());
+            if (m.accuracy() > matchings[best].accuracy())
+                best = k;
+        }
+        table.show("StarDist Threshold Optimization");
+
+        bestProbThresh = probThreshs[best / nmsThreshs.length];
+        bestNmsThresh = nmsThreshs[best % nmsThreshs.length];
+        log.info(String.format("Best thresholds (IoU threshold %.2f): %s = %.3f, %s = %.3f (accuracy %.3f, F1 %.3f)",
+                iouThresh, Opt.PROB_THRESH, bestProbThresh, Opt.NMS_THRESH, bestNmsThresh, matchings[best].accuracy(), matchings[best].f1()));
+        if (verbose)
+            log.info(String.format("Threshold optimization (%d pairs of thresholds) took %d ms", numPairs, System.currentTimeMillis() - start));
+
+        // call at the end of the run() method
+        CommandFromMacro.record(this, this.command);
+    }
+
+
+    private boolean checkInputs() {
+        final LinkedHashSet<AxisType> probAxes = Utils.orderedAxesSet(prob);
+        final LinkedHashSet<AxisType> distAxes = Utils.orderedAxesSet(dist);
+        final LinkedHashSet<AxisType> gtAxes = Utils.orderedAxesSet(groundTruth);
+
+        if (!(prob.numDimensions() == 2 && probAxes.containsAll(Arrays.asList(Axes.X, Axes.Y))))
+            return showError(String.format("%s must be a 2D image.", Opt.PROB_IMAGE));
+
+        if (!(dist.numDimensions() == 3 && distAxes.containsAll(Arrays.asList(Axes.X, Axes.Y, Axes.CHANNEL)) && dist.getChannels() >= 3))
+            return showError(String.format("%s must be a 2D image with at least three channels.", Opt.DIST_IMAGE));
+
+        if (!(groundTruth.numDimensions() == 2 && gtAxes.containsAll(Arrays.asList(Axes.X, Axes.Y))))
+            return showError(String.format("%s must be a 2D image.", Opt.GROUND_TRUTH_IMAGE));
+
+        if (prob.getWidth() != dist.getWidth() || prob.getHeight() != dist.getHeight() ||
+            prob.getWidth() != groundTruth.getWidth() || prob.getHeight() != groundTruth.getHeight())
+            return showError(String.format("Width or height of %s, %s and %s differ.", Opt.PROB_IMAGE, Opt.DIST_IMAGE, Opt.GROUND_TRUTH_IMAGE));
+
+        final AxisType[] distAxesArray = distAxes.stream().toArray(AxisType[]::new);
+        if (!( distAxesArray[0] == Axes.X && distAxesArray[1] == Axes.Y ))
+            return showError(String.format("First two axes of %s must be a X and Y.", Opt.DIST_IMAGE));
+
+        if (!(0 <= probThreshMin && probThreshMin <= probThreshMax && probThreshMax <= 1))
+            return showError(String.format("%s and %s must be between 0 and 1, min <= max.", Opt.PROB_THRESH_MIN, Opt.PROB_THRESH_MAX));
+
+        if (!(0 <= nmsThreshMin && nmsThreshMin <= nmsThreshMax && nmsThreshMax <= 1))
+            return showError(String.format("%s and %s must be between 0 and 1, min <= max.", Opt.NMS_THRESH_MIN, Opt.NMS_THRESH_MAX));
+
+        if (!(probThreshStep > 0 && nmsThreshStep > 0))
+            return showError(String.format("%s and %s must be > 0", Opt.PROB_THRESH_STEP, Opt.NMS_THRESH_STEP));
+
+        if (!(0.5 <= iouThresh && iouThresh <= 1))
+            return showError(String.format("%s must be between 0.5 and 1.", Opt.IOU_THRESH));
+
+        if (excludeBoundary < 0)
+            return showError(String.format("%s must be >= 0", Opt.EXCLUDE_BNDRY));
+
+        return true;
+    }
+
+
+    // min, min+step, ..., up to max (inclusive, with some tolerance for round-off)
+    private static double[] thresholds(final double min, final double max, final double step) {
+        final int n = 1 + (int) Math.floor((max - min) / step + 1e-9);
+        final double[] values = new double[n];
+        for (int k = 0; k < n; k++)
+            values[k] = min + k * step;
+        return values;
+    }
+
+    // ground-truth labels relabeled to 1,2,... (0 = background)
+    private static int[] readLabels(final RandomAccessibleInterval<? extends RealType<?>> rai, final int width, final int height) {
+        final RandomAccess<? extends RealType<?>> r = rai.randomAccess();
+        final int[] labels = new int[width*height];
+        final HashMap<Integer, Integer> ids = new HashMap<>();
+        for (int y = 0; y < height; y++) {
+            r.setPosition(y, 1);
+            for (int x = 0; x < width; x++) {
+                r.setPosition(x, 0);
+                final int value = (int) r.get().getRealDouble();
+                if (value != 0)
+                    labels[x + width*y] = ids.computeIfAbsent(value, v -> 1 + ids.size());
+            }
+        }
+        return labels;
+    }
+
+    // matching of the winners (painted as in the label image output) and the ground-truth objects: pairs of objects with
+    // an IoU of at least iouThresh (as in StarDist's python matching) are unique for each object if iouThresh >= 0.5
+    // (see checkInputs, apart from ties at exactly 0.5 that don't change the number of matches), hence matching them
+    // greedily by decreasing IoU is optimal. only the pixels of the winners are visited (no label image of the
+    // prediction), a pixel covered by several winners belongs to the first of them (painted last)
+    private static Matching match(final Candidates polygons, final int[] winner, final int[] gtLabels, final long[] gtAreas,
+                                  final int width, final int height, final double iouThresh) {
+        final int numPred = winner.length, numGt = gtAreas.length - 1;
+        final Rectangle[] bounds = new Rectangle[numPred];
+        final ImageProcessor[] masks = new ImageProcessor[numPred];
+        final long[] predAreas = new long[numPred];
+        // pixel counts of all pairs of overlapping objects, pair (p,g) encoded as p*(numGt+1)+g
+        final HashMap<Long, Long> inter = new HashMap<>();
+
+        // winners in grid cells of size MATCH_CELL_SIZE touched by their bounds, to find the previous winners covering a pixel
+        final int cellsX = 1 + (width-1) / MATCH_CELL_SIZE, cellsY = 1 + (height-1) / MATCH_CELL_SIZE;
+        final HashMap<Integer, List<Integer>> cells = new HashMap<>();
+        final int[] visited = new int[numPred];
+        Arrays.fill(visited, -1);
+        final List<Integer> previous = new ArrayList<>();
+
+        for (int p = 0; p < numPred; p++) {
+            final PolygonRoi polyRoi = polygons.getPolygonRoi(winner[p]);
+            final Rectangle r = polyRoi.getBounds();
+            final ImageProcessor mask = polyRoi.getMask();
+            final int x0 = Math.max(0, r.x), x1 = Math.min(width, r.x + r.width);
+            final int y0 = Math.max(0, r.y), y1 = Math.min(height, r.y + r.height);
+            if (mask == null || x0 >= x1 || y0 >= y1) continue;
+            bounds[p] = r;
+            masks[p] = mask;
+
+            previous.clear();
+            for (int cy = y0 / MATCH_CELL_SIZE; cy <= (y1-1) / MATCH_CELL_SIZE; cy++) {
+                for (int cx = x0 / MATCH_CELL_SIZE; cx <= (x1-1) / MATCH_CELL_SIZE; cx++) {
+                    final List<Integer> cell = cells.computeIfAbsent(cx + cellsX * cy, c -> new ArrayList<>());
+                    for (final int q : cell) {
+                        if (visited[q] == p) continue;
+                        visited[q] = p;
+                        if (bounds[q].intersects(r)) previous.add(q);
+                    }
+                    cell.add(p);
+                }
+            }
+
+            for (int y = y0; y < y1; y++) {
+                pixels:
+                for (int x = x0; x < x1; x++) {
+                    if (mask.get(x - r.x, y - r.y) == 0) continue;
+                    for (final int q : previous)
+                        if (bounds[q].contains(x, y) && masks[q].get(x - bounds[q].x, y - bounds[q].y) != 0) continue pixels;
+                    predAreas[p]++;
+                    final int g = gtLabels[x + width*y];
+                    if (g != 0) inter.merge((long) p * (numGt+1) + g, 1L, Long::sum);
+                }
+            }
+        }
+
+        final List<long[]> matches = new ArrayList<>();
+        final List<Double> matchIoUs = new ArrayList<>();
+        for (final Map.Entry<Long, Long> pair : inter.entrySet()) {
+            final int p = (int) (pair.getKey() / (numGt+1)), g = (int) (pair.getKey() % (numGt+1));
+            final long overlap = pair.getValue();
+            final double iou = overlap / (double) (predAreas[p] + gtAreas[g] - overlap);
+            if (iou < iouThresh) continue;
+            matches.add(new long[]{p, g});
+            matchIoUs.add(iou);
+        }
+
+        final Integer[] order = new Integer[matches.size()];
+        for (int m = 0; m < order.length; m++) order[m] = m;
+        Arrays.sort(order, (a, b) -> Double.compare(matchIoUs.get(b), matchIoUs.get(a)));
+        final boolean[] predUsed = new boolean[numPred], gtUsed = new boolean[numGt+1];
+        int tp = 0;
+        for (final int m : order) {
+            final int p = (int) matches.get(m)[0], g = (int) matches.get(m)[1];
+            if (predUsed[p] || gtUsed[g]) continue;
+            predUsed[p] = gtUsed[g] = true;
+            tp++;
+        }
+
+        // objects without any pixels (e.g. painted over completely) still count
+        return new Matching(tp, numPred - tp, numGt - tp);
+    }
+
+    // areas of the ground-truth objects (index 0 = background)
+    private static long[] areas(final int[] labels) {
+        int numLabels = 0;
+        for (final int g : labels) numLabels = Math.max(numLabels, g);
+        final long[] areas = new long[numLabels+1];
+        for (final int g : labels) areas[g]++;
+        return areas;
+    }
+
+    private static final class Matching {
+        final int tp, fp, fn;
+
+        Matching(final int tp, final int fp, final int fn) {
+            this.tp = tp;
+            this.fp = fp;
+            this.fn = fn;
+        }
+
+        double precision() { return tp / Math.max(1.0, tp + fp); }
+        double recall()    { return tp / Math.max(1.0, tp + fn); }
+        double f1()        { return 2*tp / Math.max(1.0, 2*tp + fp + fn); }
+        double accuracy()  { return tp / Math.max(1.0, tp + fp + fn); }
+    }
+
+
+    @Override
+    protected void exportPolygons(Candidates polygons) {}
+
+    @Override
+    protected ImagePlus createLabelImage() {
+        return null;
+    }
+
+
+}
@@ -1,5 +1,7 @@
 package de.csbdresden.stardist;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
@@ -7,6 +9,11 @@ import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import de.lighti.clipper.Path;
@@ -19,6 +26,14 @@ import net.imagej.DatasetService;
 import net.imagej.ImgPlus;
 import net.imagej.axis.AxisType;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 public class Utils {
 
@@ -33,19 +48,50 @@ public class Utils {
         }
         return new PolygonRoi(x, y, n, Roi.POLYGON);
     }
+
+    // vertex x coordinates at poly[offset,offset+n), y coordinates at poly[offset+n,offset+2*n)
+    public static PolygonRoi toPolygonRoi(long[] poly, int offset, int n, float S) {
+        float[] x = new float[n];
+        float[] y = new float[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 0.5f + poly[offset+i] / S;
+            y[i] = 0.5f + poly[offset+n+i] / S;
+        }
+        return new PolygonRoi(x, y, n, Roi.POLYGON);
+    }
     
     public static PointRoi toPointRoi(Point2D o, float S) {
-        return new PointRoi(0.5f + o.x / S, 0.5f + o.y / S);
+        return toPointRoi(o.x, o.y, S);
+    }
+
+    public static PointRoi toPointRoi(long x, long y, float S) {
+        return new PointRoi(0.5f + x / S, 0.5f + y / S);
     }
 
     public static Roi toBoxRoi(Box2D bbox, float S) {
-        double xmin = 0.5 + bbox.xmin / S;
-        double xmax = 0.5 + bbox.xmax / S;
-        double ymin = 0.5 + bbox.ymin / S;
-        double ymax = 0.5 + bbox.ymax / S;
+        return toBoxRoi(bbox.xmin, bbox.xmax, bbox.ymin, bbox.ymax, S);
+    }
+
+    public static Roi toBoxRoi(long bxmin, long bxmax, long bymin, long bymax, float S) {
+        double xmin = 0.5 + bxmin / S;
+        double xmax = 0.5 + bxmax / S;
+        double ymin = 0.5 + bymin / S;
+        double ymax = 0.5 + bymax / S;
         return new Roi(xmin, ymin, xmax - xmin, ymax - ymin);
     }
 
+    // same as de.lighti.clipper.Path.area(), but for vertices stored in a primitive array
+    // (x coordinates at poly[offset,offset+n), y coordinates at poly[offset+n,offset+2*n))
+    public static double polygonArea(long[] poly, int offset, int n) {
+        if (n < 3) return 0;
+        double a = 0;
+        for (int i = 0, j = n - 1; i < n; ++i) {
+            a += ((double) poly[offset+j] + poly[offset+i]) * ((double) poly[offset+n+j] - poly[offset+n+i]);
+            j = i;
+        }
+        return -a * 0.5;
+    }
+
     public static double[] rayAngles(int n) {
         double[] angles = new double[n];
         double st = (2*Math.PI)/n;
@@ -53,6 +99,18 @@ public class Utils {
         return angles;
     }
 
+    public static double[] rayCos(int n) {
+        final double[] angles = rayAngles(n);
+        for (int i = 0; i < n; i++) angles[i] = Math.cos(angles[i]);
+        return angles;
+    }
+
+    public static double[] raySin(int n) {
+        final double[] angles = rayAngles(n);
+        for (int i = 0; i < n; i++) angles[i] = Math.sin(angles[i]);
+        return angles;
+    }
+
     public static List<Integer> argsortDescending(final List<Float> list) {
         Integer[] indices = new Integer[list.size()];
         for (int i = 0; i < indices.length; i++) indices[i] = i;
@@ -65,6 +123,62 @@ public class Utils {
         return Arrays.asList(indices);
     }
 
+    /**
+     * Indices that sort the values in descending order (same order as {@link Float#compare}, ties keep their index order).
+     * Stable LSD radix sort on the float bits, doesn't box or compare values.
+     */
+    public static int[] argsortDescending(final float[] values) {
+        final int n = values.length;
+        int[] keys = new int[n], indices = new int[n];
+        int[] keysTmp = new int[n], indicesTmp = new int[n];
+        for (int i = 0; i < n; i++) {
+            // map float bits to ints with the same (signed) order, then invert
+            // the order and flip the sign bit to sort ascending as unsigned ints
+            final int bits = Float.floatToIntBits(values[i]);
+            final int key = bits >= 0 ? bits : bits ^ 0x7fffffff;
+            keys[i] = ~key ^ 0x80000000;
+            indices[i] = i;
+        }
+        final int[] count = new int[257];
+        for (int shift = 0; shift < 32; shift += 8) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; i++)
+                count[((keys[i] >>> shift) & 0xff) + 1]++;
+            // skip pass if all keys have the same digit
+            boolean skip = false;
+            for (int d = 1; d <= 256 && !skip; d++)
+                skip = count[d] == n;
+            if (skip) continue;
+            for (int d = 0; d < 256; d++)
+                count[d+1] += count[d];
+            for (int i = 0; i < n; i++) {
+                final int pos = count[(keys[i] >>> shift) & 0xff]++;
+                keysTmp[pos] = keys[i];
+                indicesTmp[pos] = indices[i];
+            }
+            int[] tmp;
+            tmp = keys; keys = keysTmp; keysTmp = tmp;
+            tmp = indices; indices = indicesTmp; indicesTmp = tmp;
+        }
+        return indices;
+    }
+
+    // read-only list view of the first size elements of an int array
+    public static List<Integer> asList(final int[] values, final int size) {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                if (index < 0 || index >= size) throw new IndexOutOfBoundsException(String.valueOf(index));
+                return values[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
     public static LinkedHashSet<AxisType> orderedAxesSet(Dataset image) {
         final int numDims = image.numDimensions();
         final LinkedHashSet<AxisType> axes = new LinkedHashSet<>(numDims);
@@ -87,6 +201,249 @@ public class Utils {
         return raiToDataset(dataset, name, rai, axesCollection.stream());
     }
 
+    // like raiToDataset, but without copying: the dataset is backed by the given image (or view).
+    // use raiToDataset if the caller needs an image of its own, e.g. of a lazily computed view
+    public static Dataset wrapToDataset(final DatasetService dataset, final String name, final RandomAccessibleInterval rai, final AxisType... axes) {
+        final Img img = rai instanceof Img ? (Img) rai : ImgView.wrap(rai, new ArrayImgFactory(Util.getTypeFromInterval(rai)));
+        return dataset.create(new ImgPlus(img, name, axes));
+    }
+
+    public static Dataset wrapToDataset(final DatasetService dataset, final String name, final RandomAccessibleInterval rai, final Stream<AxisType> axesStream) {
+        return wrapToDataset(dataset, name, rai, axesStream.toArray(AxisType[]::new));
+    }
+
+    public static Dataset wrapToDataset(final DatasetService dataset, final String name, final RandomAccessibleInterval rai, final Collection<AxisType> axesCollection) {
+        return wrapToDataset(dataset, name, rai, axesCollection.stream());
+    }
+
+    // images with more values are not copied into an array to compute percentiles (see percentilesFromHistogram)
+    private static final double PERCENTILE_SORT_HEAP_FRACTION = 0.125;
+    private static final int PERCENTILE_BINS = 1 << 16;
+    private static final int PERCENTILE_MAX_BIN_VALUES = 1 << 24;
+    // parts of an image (along its last dimension) that are read in parallel
+    private static final int PERCENTILE_CHUNKS_PER_THREAD = 2;
+
+    // percentiles (in [0,100], with linear interpolation) of all values of an image, e.g. of a whole timelapse.
+    // the image is read in parallel, images of integer types with at most PERCENTILE_BINS values only once
+    public static double[] percentiles(final RandomAccessibleInterval<? extends RealType<?>> rai, final double... percentiles) {
+        final long size = Intervals.numElements(rai);
+        final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks = chunks(rai);
+        final RealType<?> type = Util.getTypeFromInterval(rai);
+        if (type instanceof IntegerType && type.getMaxValue() - type.getMinValue() < PERCENTILE_BINS)
+            return percentilesFromIntegerHistogram(chunks, (long) type.getMinValue(), size, percentiles);
+        if (size > Integer.MAX_VALUE - 8 || 4 * size > PERCENTILE_SORT_HEAP_FRACTION * Runtime.getRuntime().maxMemory())
+            return percentilesFromHistogram(chunks, size, percentiles);
+        final float[] values = new float[(int) size];
+        final int[] offsets = new int[chunks.size()];
+        for (int c = 1; c < chunks.size(); c++)
+            offsets[c] = offsets[c-1] + (int) Intervals.numElements(chunks.get(c-1));
+        IntStream.range(0, chunks.size()).parallel().forEach(c -> {
+            int k = offsets[c];
+            for (final RealType<?> v : Views.iterable(chunks.get(c)))
+                values[k++] = v.getRealFloat();
+        });
+        Arrays.parallelSort(values);
+        final double[] result = new double[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            final double pos = rank(percentiles[p], size);
+            final int lo = (int) Math.floor(pos), hi = Math.min(lo + 1, (int) size - 1);
+            result[p] = values[lo] + (pos - lo) * (values[hi] - values[lo]);
+        }
+        return result;
+    }
+
+    // position of a percentile in the sorted values
+    private static double rank(final double percentile, final long size) {
+        return Math.max(0, Math.min(1, percentile / 100)) * (size - 1);
+    }
+
+    // consecutive parts of an image along its last dimension
+    private static <T> List<RandomAccessibleInterval<T>> chunks(final RandomAccessibleInterval<T> rai) {
+        final int n = rai.numDimensions(), d = n - 1;
+        final long length = rai.dimension(d);
+        final int numChunks = (int) Math.max(1, Math.min(length, PERCENTILE_CHUNKS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism()));
+        final List<RandomAccessibleInterval<T>> chunks = new ArrayList<>(numChunks);
+        if (numChunks == 1) {
+            chunks.add(rai);
+            return chunks;
+        }
+        final long[] min = new long[n], max = new long[n];
+        for (int e = 0; e < n; e++) {
+            min[e] = rai.min(e);
+            max[e] = rai.max(e);
+        }
+        for (int c = 0; c < numChunks; c++) {
+            min[d] = rai.min(d) + c * length / numChunks;
+            max[d] = rai.min(d) + (c + 1) * length / numChunks - 1;
+            chunks.add(Views.interval(rai, min, max));
+        }
+        return chunks;
+    }
+
+    // histogram of all chunks, computed in parallel. values with a negative bin are not counted
+    private static long[] histogram(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final int nBins, final DoubleToIntFunction bin) {
+        return chunks.parallelStream().map(chunk -> {
+            final long[] counts = new long[nBins];
+            for (final RealType<?> v : Views.iterable(chunk)) {
+                final int b = bin.applyAsInt(v.getRealFloat());
+                if (b >= 0) counts[b]++;
+            }
+            return counts;
+        }).reduce((a, b) -> {
+            for (int i = 0; i < nBins; i++) a[i] += b[i];
+            return a;
+        }).get();
+    }
+
+    // bin of the value with the given rank, first[b] is the rank of the first value of bin b
+    private static int binOfRank(final long[] first, final long[] counts, final long rank) {
+        int b = Arrays.binarySearch(first, rank);
+        if (b < 0) b = -b - 2;
+        // skip empty bins (with equal first index)
+        while (counts[b] == 0) b++;
+        return b;
+    }
+
+    private static long[] firstRanks(final long[] counts) {
+        final long[] first = new long[counts.length + 1];
+        for (int b = 0; b < counts.length; b++)
+            first[b+1] = first[b] + counts[b];
+        return first;
+    }
+
+    // exact result from a single read of the image: each integer value has its own bin
+    private static double[] percentilesFromIntegerHistogram(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final long offset, final long size, final double... percentiles) {
+        final long[] counts = histogram(chunks, PERCENTILE_BINS, x -> (int) ((long) x - offset));
+        final long[] first = firstRanks(counts);
+        final double[] result = new double[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            final double pos = rank(percentiles[p], size);
+            final long lo = (long) Math.floor(pos), hi = Math.min(lo + 1, size - 1);
+            final long vlo = offset + binOfRank(first, counts, lo), vhi = offset + binOfRank(first, counts, hi);
+            result[p] = vlo + (pos - lo) * (vhi - vlo);
+        }
+        return result;
+    }
+
+    // same result as above with memory independent of the image size (e.g. for lazily loaded cell images), at the cost
+    // of reading the image three times: value range, histogram, and then the values of only those bins that contain
+    // the ranks of the requested percentiles. bins with too many values are binned again (see valueOfRank)
+    private static double[] percentilesFromHistogram(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final long size, final double... percentiles) {
+        final double[] range = range(chunks, x -> true);
+        final double min = range[0], max = range[1];
+        final double[] result = new double[percentiles.length];
+        if (!(min < max)) {
+            Arrays.fill(result, min);
+            return result;
+        }
+        final int nBins = PERCENTILE_BINS;
+        final double binScale = nBins / (max - min);
+        final DoubleToIntFunction binOf = x -> Math.min(nBins - 1, (int) ((x - min) * binScale));
+        final long[] counts = histogram(chunks, nBins, binOf);
+        final long[] first = firstRanks(counts);
+
+        // ranks of the values to interpolate between
+        final long[] ranks = new long[2 * percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            ranks[2*p] = (long) Math.floor(rank(percentiles[p], size));
+            ranks[2*p+1] = Math.min(ranks[2*p] + 1, size - 1);
+        }
+        final int[] rankBin = new int[ranks.length];
+        // bins whose values are collected (and sorted), by slot
+        final int[] slot = new int[nBins];
+        Arrays.fill(slot, -1);
+        final List<Integer> bins = new ArrayList<>();
+        for (int r = 0; r < ranks.length; r++) {
+            final int b = binOfRank(first, counts, ranks[r]);
+            rankBin[r] = b;
+            if (counts[b] <= PERCENTILE_MAX_BIN_VALUES && slot[b] < 0) {
+                slot[b] = bins.size();
+                bins.add(b);
+            }
+        }
+        final HashMap<Integer, float[]> binValues = new HashMap<>();
+        final float[][] collected = collect(chunks, x -> slot[binOf.applyAsInt(x)], bins.size());
+        for (int s = 0; s < bins.size(); s++)
+            binValues.put(bins.get(s), collected[s]);
+
+        final double[] value = new double[ranks.length];
+        for (int r = 0; r < ranks.length; r++) {
+            final int b = rankBin[r];
+            final float[] values = binValues.get(b);
+            final long k = ranks[r] - first[b];
+            value[r] = values != null ? values[(int) k] : valueOfRank(chunks, x -> binOf.applyAsInt(x) == b, k);
+        }
+        for (int p = 0; p < percentiles.length; p++) {
+            final double pos = rank(percentiles[p], size);
+            result[p] = value[2*p] + (pos - ranks[2*p]) * (value[2*p+1] - value[2*p]);
+        }
+        return result;
+    }
+
+    // value with rank k among the values accepted by the filter (e.g. those of a bin with too many values to be sorted),
+    // found by binning these values again (between their own min and max) until the bin of rank k is small enough
+    private static float valueOfRank(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final DoublePredicate filter, final long k) {
+        final double[] range = range(chunks, filter);
+        final double min = range[0], max = range[1];
+        if (!(min < max))
+            return (float) min;
+        final int nBins = PERCENTILE_BINS;
+        final double binScale = nBins / (max - min);
+        final DoubleToIntFunction binOf = x -> filter.test(x) ? Math.min(nBins - 1, (int) ((x - min) * binScale)) : -1;
+        final long[] counts = histogram(chunks, nBins, binOf);
+        final long[] first = firstRanks(counts);
+        final int b = binOfRank(first, counts, k);
+        if (counts[b] > PERCENTILE_MAX_BIN_VALUES)
+            return valueOfRank(chunks, x -> binOf.applyAsInt(x) == b, k - first[b]);
+        return collect(chunks, x -> binOf.applyAsInt(x) == b ? 0 : -1, 1)[0][(int) (k - first[b])];
+    }
+
+    // min and max of the values accepted by the filter, computed in parallel
+    private static double[] range(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final DoublePredicate filter) {
+        return chunks.parallelStream().map(chunk -> {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (final RealType<?> v : Views.iterable(chunk)) {
+                final float x = v.getRealFloat();
+                if (!filter.test(x)) continue;
+                if (x < min) min = x;
+                if (x > max) max = x;
+            }
+            return new double[]{min, max};
+        }).reduce((a, b) -> new double[]{Math.min(a[0], b[0]), Math.max(a[1], b[1])}).get();
+    }
+
+    // sorted values of each slot (values with a negative slot are not collected), collected in parallel
+    private static float[][] collect(final List<? extends RandomAccessibleInterval<? extends RealType<?>>> chunks, final DoubleToIntFunction slotOf, final int numSlots) {
+        if (numSlots == 0) return new float[0][];
+        final List<float[][]> parts = chunks.parallelStream().map(chunk -> {
+            final float[][] part = new float[numSlots][16];
+            final int[] filled = new int[numSlots];
+            for (final RealType<?> v : Views.iterable(chunk)) {
+                final float x = v.getRealFloat();
+                final int s = slotOf.applyAsInt(x);
+                if (s < 0) continue;
+                if (filled[s] == part[s].length) part[s] = Arrays.copyOf(part[s], 2 * filled[s]);
+                part[s][filled[s]++] = x;
+            }
+            for (int s = 0; s < numSlots; s++)
+                part[s] = Arrays.copyOf(part[s], filled[s]);
+            return part;
+        }).collect(Collectors.toList());
+        final float[][] values = new float[numSlots][];
+        for (int s = 0; s < numSlots; s++) {
+            int n = 0;
+            for (final float[][] part : parts) n += part[s].length;
+            values[s] = new float[n];
+            n = 0;
+            for (final float[][] part : parts) {
+                System.arraycopy(part[s], 0, values[s], n, part[s].length);
+                n += part[s].length;
+            }
+            Arrays.parallelSort(values[s]);
+        }
+        return values;
+    }
+
     public static void copyCalibration(final Dataset source, final Dataset target, final AxisType... axes) {
         if (target == null) return;
         final Map<AxisType, Integer> axisToDim = new HashMap<>(target.numDimensions());
@@ -0,0 +1,126 @@
+package de.csbdresden.stardist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.lighti.clipper.Clipper;
+import de.lighti.clipper.DefaultClipper;
+import de.lighti.clipper.Path;
+import de.lighti.clipper.Paths;
+import de.lighti.clipper.Point.LongPoint;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+
+// agreement of the specialized star-convex intersection (default for nms) with Clipper (the fallback)
+public class StarConvexIntersectionTest {
+
+    private static final int NRAYS = 32;
+    private static final long S = 100;
+
+    // random pairs of overlapping polygons with non-negative rays (some of them zero)
+    @Test
+    public void testAgreementWithClipper() {
+        final Random random = new Random(42);
+        final StarConvexIntersection starConvex = new StarConvexIntersection(NRAYS);
+        double maxError = 0;
+        for (int t = 0; t < 20000; t++) {
+            final double radius = 2 + 30 * random.nextDouble();
+            final long ax = random.nextInt(100000), ay = random.nextInt(100000);
+            final long bx = ax + (long) (S * radius * random.nextGaussian()), by = ay + (long) (S * radius * random.nextGaussian());
+            final double noise = random.nextBoolean() ? 0.05 : 0.4;
+            final long[] a = polygon(random, ax, ay, radius, noise);
+            final long[] b = polygon(random, bx, by, radius * (0.5 + random.nextDouble()), noise);
+            final double minArea = Math.min(Math.abs(Utils.polygonArea(a, 0, NRAYS)), Math.abs(Utils.polygonArea(b, 0, NRAYS)));
+            final double error = Math.abs(starConvex.area(a, ax, ay, b, bx, by) - clipperArea(a, b)) / (minArea + 1e-10);
+            maxError = Math.max(maxError, error);
+        }
+        assertTrue(String.format("max. deviation from Clipper: %.2e of the smaller area", maxError), maxError < 5e-3);
+    }
+
+    // slightly negative rays (e.g. from a linear distance output) are handled by Clipper, hence nms agrees exactly
+    @Test
+    public void testNegativeRaysNMS() {
+        for (long seed = 1; seed <= 3; seed++) {
+            final Img<FloatType>[] probAndDist = synthetic(160, 160, 60, seed);
+            for (final double nmsThresh : new double[]{0.1, 0.3, 0.5, 0.7}) {
+                final Candidates starConvex = new Candidates(probAndDist[0], probAndDist[1], 0.4, 2, null);
+                starConvex.setIntersection(Candidates.Intersection.STAR_CONVEX);
+                starConvex.nms(nmsThresh);
+                final Candidates clipper = new Candidates(probAndDist[0], probAndDist[1], 0.4, 2, null);
+                clipper.setIntersection(Candidates.Intersection.CLIPPER);
+                clipper.nms(nmsThresh);
+                assertArrayEquals(clipper.getWinnerIndices(), starConvex.getWinnerIndices());
+            }
+        }
+    }
+
+    // layout as in Candidates (see StarConvexIntersection)
+    private static long[] polygon(final Random random, final long ox, final long oy, final double radius, final double noise) {
+        final long[] p = new long[2*NRAYS+4];
+        long xmin = Long.MAX_VALUE, xmax = Long.MIN_VALUE, ymin = Long.MAX_VALUE, ymax = Long.MIN_VALUE;
+        for (int k = 0; k < NRAYS; k++) {
+            final double d = random.nextInt(50) == 0 ? 0 : Math.max(0, radius * (1 + noise * random.nextGaussian()));
+            final double phi = 2 * Math.PI * k / NRAYS;
+            final long x = Math.round(ox + S * d * Math.cos(phi)), y = Math.round(oy + S * d * Math.sin(phi));
+            p[k] = x;
+            p[NRAYS+k] = y;
+            xmin = Math.min(xmin, x); xmax = Math.max(xmax, x);
+            ymin = Math.min(ymin, y); ymax = Math.max(ymax, y);
+        }
+        p[2*NRAYS  ] = xmin; p[2*NRAYS+1] = xmax;
+        p[2*NRAYS+2] = ymin; p[2*NRAYS+3] = ymax;
+        return p;
+    }
+
+    private static double clipperArea(final long[] a, final long[] b) {
+        final Clipper c = new DefaultClipper();
+        final Paths res = new Paths();
+        c.addPath(path(a), Clipper.PolyType.CLIP, true);
+        c.addPath(path(b), Clipper.PolyType.SUBJECT, true);
+        c.execute(Clipper.ClipType.INTERSECTION, res, Clipper.PolyFillType.NON_ZERO, Clipper.PolyFillType.NON_ZERO);
+        double area = 0;
+        for (final Path p : res)
+            area += p.area();
+        return area;
+    }
+
+    private static Path path(final long[] poly) {
+        final Path path = new Path(NRAYS);
+        for (int k = 0; k < NRAYS; k++)
+            path.add(new LongPoint(poly[k], poly[NRAYS+k]));
+        return path;
+    }
+
+    // prob and dist of random discs, with noisy rays of which some are slightly negative
+    private static Img<FloatType>[] synthetic(final int width, final int height, final int numObjects, final long seed) {
+        final Random random = new Random(seed);
+        final float[] prob = new float[width*height], dist = new float[width*height*NRAYS];
+        final double[][] objects = new double[numObjects][];
+        for (int o = 0; o < numObjects; o++)
+            objects[o] = new double[]{width * random.nextDouble(), height * random.nextDouble(), 3 + 12 * random.nextDouble()};
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double best = 0;
+                double[] object = objects[0];
+                for (final double[] o : objects) {
+                    final double p = 1 - Math.hypot(x - o[0], y - o[1]) / o[2];
+                    if (p > best) { best = p; object = o; }
+                }
+                prob[x + width*y] = (float) Math.min(1, best + 0.05 * random.nextDouble());
+                for (int k = 0; k < NRAYS; k++) {
+                    final double phi = 2 * Math.PI * k / NRAYS;
+                    final double d = random.nextInt(8) == 0 ? -2 * random.nextDouble() :
+                            object[2] - ((x - object[0]) * Math.cos(phi) + (y - object[1]) * Math.sin(phi)) + 0.8 * random.nextGaussian();
+                    dist[x + width*(y + height*k)] = (float) d;
+                }
+            }
+        }
+        return new Img[]{ArrayImgs.floats(prob, width, height), ArrayImgs.floats(dist, width, height, NRAYS)};
+    }
+
+}